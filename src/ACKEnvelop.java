@@ -1,14 +1,12 @@
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.UUID;
 
 /**
  * @author Jun Yu
  */
 
 
-public class ACKEnvelop implements Serializable {
+public class ACKEnvelop {
     public static final int CLIENT_ACK = 1;
     public static final int FILE_SERVER_ACK = 2;
     public static final int META_SERVER_ACK = 3;
@@ -17,7 +15,6 @@ public class ACKEnvelop implements Serializable {
     int id;
     long ackNo;
     private static long ackSeries = 0;
-    final UUID uuid = UUID.randomUUID();
 
     FileInfo fileInfo = null;
     HashMap<String, ArrayList<Integer>> chunkMap = new HashMap<>();
@@ -39,10 +36,18 @@ public class ACKEnvelop implements Serializable {
         return ack;
     }
 
-    public static ACKEnvelop fileServerAck(int id, FileInfo info) {
+    /**
+     * ACK of a file server after it changed some chunks, applied by meta server as a delta
+     *
+     * @param id      file server
+     * @param changed current state of chunks added or changed
+     * @param removed file name -> IDs of chunks no longer held
+     */
+    public static ACKEnvelop fileServerAck(int id, FileInfo changed, HashMap<String, ArrayList<Integer>> removed) {
         ACKEnvelop ack = new ACKEnvelop(FILE_SERVER_ACK);
         ack.id = id;
-        ack.fileInfo = info;
+        ack.fileInfo = changed;
+        ack.chunkMap = removed;
         ack.ackNo = newAck();
         return ack;
     }
@@ -52,4 +57,18 @@ public class ACKEnvelop implements Serializable {
         ack.ackNo = ackNo;
         return ack;
     }
+
+    /**
+     * Rebuild an ACK received from wire, keeping the numbers assigned by sender
+     */
+    static ACKEnvelop decoded(int type, int id, long ackNo, FileInfo info,
+                              HashMap<String, ArrayList<Integer>> chunkMap, boolean success) {
+        ACKEnvelop ack = new ACKEnvelop(type);
+        ack.id = id;
+        ack.ackNo = ackNo;
+        ack.fileInfo = info;
+        ack.chunkMap = chunkMap;
+        ack.success = success;
+        return ack;
+    }
 }
@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunk report sent by file server with every heartbeat. A full report carries every chunk of
+ * the server, a delta carries only the chunks changed since baseSeq, the last report meta server
+ * acknowledged. Delta entries hold the current state of a chunk, so applying one twice is harmless.
+ */
+public class BlockReport {
+    boolean full;
+    // report this delta builds on, ignored for full report
+    long baseSeq;
+    long seq;
+
+    // full report: all chunks, delta: added or changed chunks
+    FileInfo fileInfo;
+    // delta only, file name -> IDs of removed chunks
+    final HashMap<String, ArrayList<Integer>> removed = new HashMap<>();
+
+    // changes covered by this report, dropped from FileInfo once acknowledged. Not sent
+    final Map<String, Map<Integer, Long>> covered = new HashMap<>();
+
+    public BlockReport(boolean full, long baseSeq, long seq) {
+        this.full = full;
+        this.baseSeq = baseSeq;
+        this.seq = seq;
+    }
+
+    void addChanged(FileChunk chunk) {
+        List<FileChunk> chunks = fileInfo.fileChunks.get(chunk.realFileName);
+        if (chunks == null) {
+            chunks = new ArrayList<>();
+            fileInfo.fileChunks.put(chunk.realFileName, chunks);
+        }
+        chunks.add(chunk);
+    }
+
+    void addRemoved(String fileName, int chunkID) {
+        ArrayList<Integer> ids = removed.get(fileName);
+        if (ids == null) {
+            ids = new ArrayList<>();
+            removed.put(fileName, ids);
+        }
+        ids.add(chunkID);
+    }
+
+    /**
+     * @return number of chunk entries carried, changed and removed
+     */
+    public int size() {
+        int num = 0;
+        for (List<FileChunk> chunks : fileInfo.fileChunks.values()) {
+            num += chunks.size();
+        }
+        for (List<Integer> ids : removed.values()) {
+            num += ids.size();
+        }
+        return num;
+    }
+}
@@ -0,0 +1,335 @@
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of hot chunks of a file server, kept off heap in direct buffers cut into slots of one
+ * chunk each. Eviction is segmented LRU: a chunk enters the probation segment and moves to the
+ * protected segment when read again, so a scan of many cold chunks only cycles probation and
+ * leaves the hot chunks alone. A doorkeeper admits a chunk only on its second miss, so chunks
+ * read once never take a slot. Writes, appends and deletes invalidate the chunk.
+ */
+public class ChunkCache {
+    public static final int DEFAULT_CAPACITY_MB = 64;
+    public static final int DEFAULT_PROTECTED_PERCENT = 80;
+    // slots per direct buffer, one buffer is 8 MB
+    static final int SLOTS_PER_SLAB = 1024;
+
+    boolean enabled = true;
+    int capacityMB = DEFAULT_CAPACITY_MB;
+    int protectedPercent = DEFAULT_PROTECTED_PERCENT;
+
+    /**
+     * Chunk being read from disk to be cached
+     */
+    static class Fill {
+        // bumped by every invalidation of the chunk, a fill started before one may hold stale data
+        long generation = 0;
+        // fills in progress, the entry is dropped when none is left
+        int readers = 0;
+    }
+
+    /**
+     * One cached chunk
+     */
+    static class Entry {
+        final int slot;
+        final int length;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    // null until allocated, cache does nothing then
+    private ByteBuffer[] slabs;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int maxProtected;
+    // both in LRU order, eldest first
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>();
+
+    // chunks missed once, cleared every doorkeeperResetAt additions
+    private BitSet doorkeeper;
+    private int doorkeeperBits;
+    private int doorkeeperAdds = 0;
+    private int doorkeeperResetAt;
+
+    // chunks being filled, by chunk name
+    private final Map<String, Fill> fills = new HashMap<>();
+
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    // misses not admitted by doorkeeper
+    long rejected = 0;
+
+    /**
+     * Build cache from optional &lt;chunkCache&gt; element of XML config
+     *
+     * @param cacheNode element, may be null
+     * @return cache with defaults overridden by config, memory allocated
+     */
+    public static ChunkCache fromConfig(Node cacheNode) {
+        ChunkCache cache = new ChunkCache();
+        if (cacheNode != null) {
+            NodeList cacheConfig = cacheNode.getChildNodes();
+            for (int j = 0; j < cacheConfig.getLength(); j++) {
+                Node oneConfig = cacheConfig.item(j);
+                if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                    continue;
+                }
+
+                String nodeName = oneConfig.getNodeName();
+                String text = oneConfig.getTextContent().trim();
+                if (nodeName.equals("enabled")) {
+                    cache.enabled = Boolean.parseBoolean(text);
+                }
+                if (nodeName.equals("capacityMB")) {
+                    cache.capacityMB = Integer.parseInt(text);
+                }
+                if (nodeName.equals("protectedPercent")) {
+                    cache.protectedPercent = Integer.parseInt(text);
+                }
+            }
+        }
+        cache.allocate();
+        return cache;
+    }
+
+    private void allocate() {
+        int slots = enabled ? (int) ((long) capacityMB * 1024 * 1024 / FileChunk.FIXED_SIZE) : 0;
+        if (slots <= 0) {
+            enabled = false;
+            return;
+        }
+
+        int slabCount = (slots + SLOTS_PER_SLAB - 1) / SLOTS_PER_SLAB;
+        slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            int slabSlots = Math.min(SLOTS_PER_SLAB, slots - i * SLOTS_PER_SLAB);
+            slabs[i] = ByteBuffer.allocateDirect(slabSlots * FileChunk.FIXED_SIZE);
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            freeSlots.add(slot);
+        }
+        maxProtected = Math.max(1, slots * protectedPercent / 100);
+
+        doorkeeperBits = Math.max(64, slots * 8);
+        doorkeeper = new BitSet(doorkeeperBits);
+        doorkeeperResetAt = Math.max(16, slots * 4);
+    }
+
+    /**
+     * Copy part of a cached chunk
+     *
+     * @param key    chunk name
+     * @param offset offset inside the chunk
+     * @param length bytes wanted, cut at the end of chunk
+     * @return data, null if chunk is not cached
+     */
+    public synchronized byte[] read(String key, int offset, int length) {
+        if (slabs == null) {
+            return null;
+        }
+
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            // read again while on probation, hot
+            promote(key, entry);
+        } else {
+            entry = protectedEntries.remove(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            protectedEntries.put(key, entry);
+        }
+        hits++;
+
+        int num = Math.max(0, Math.min(length, entry.length - offset));
+        byte[] data = new byte[num];
+        ByteBuffer slot = slotBuffer(entry.slot);
+        slot.position(slot.position() + offset);
+        slot.get(data);
+        return data;
+    }
+
+    /**
+     * Register a miss with the doorkeeper
+     *
+     * @param key chunk name
+     * @return true if the chunk missed before and should be cached now
+     */
+    public synchronized boolean admit(String key) {
+        if (slabs == null) {
+            return false;
+        }
+
+        int h1 = key.hashCode();
+        int h2 = (h1 >>> 16) | (h1 << 16);
+        h2 = h2 * 0x9E3779B9;
+        int bit1 = (h1 & Integer.MAX_VALUE) % doorkeeperBits;
+        int bit2 = (h2 & Integer.MAX_VALUE) % doorkeeperBits;
+        if (doorkeeper.get(bit1) && doorkeeper.get(bit2)) {
+            return true;
+        }
+
+        doorkeeper.set(bit1);
+        doorkeeper.set(bit2);
+        rejected++;
+        if (++doorkeeperAdds >= doorkeeperResetAt) {
+            // forget old misses, so the doorkeeper reflects recent reads
+            doorkeeper.clear();
+            doorkeeperAdds = 0;
+        }
+        return false;
+    }
+
+    /**
+     * Start a fill, pass the ticket to put, or cancel if the chunk can not be read
+     *
+     * @param key chunk name
+     * @return ticket to pass to put, taken before reading the chunk from disk
+     */
+    public synchronized long ticket(String key) {
+        Fill fill = fills.get(key);
+        if (fill == null) {
+            fill = new Fill();
+            fills.put(key, fill);
+        }
+        fill.readers++;
+        return fill.generation;
+    }
+
+    /**
+     * End a fill without caching anything
+     *
+     * @param key chunk name
+     */
+    public synchronized void cancel(String key) {
+        endFill(key);
+    }
+
+    /**
+     * Cache a whole chunk read from disk
+     *
+     * @param key    chunk name
+     * @param data   whole chunk
+     * @param ticket from ticket(key), the data is dropped if the chunk was invalidated since
+     */
+    public synchronized void put(String key, byte[] data, long ticket) {
+        Fill fill = endFill(key);
+        if (slabs == null || fill == null || ticket != fill.generation || data.length > FileChunk.FIXED_SIZE) {
+            return;
+        }
+        if (probation.containsKey(key) || protectedEntries.containsKey(key)) {
+            return;
+        }
+
+        if (freeSlots.isEmpty()) {
+            evict();
+        }
+        Entry entry = new Entry(freeSlots.poll(), data.length);
+        slotBuffer(entry.slot).put(data);
+        probation.put(key, entry);
+    }
+
+    /**
+     * Drop a chunk changed or deleted on disk
+     *
+     * @param key chunk name
+     */
+    public synchronized void invalidate(String key) {
+        if (slabs == null) {
+            return;
+        }
+
+        Fill fill = fills.get(key);
+        if (fill != null) {
+            fill.generation++;
+        }
+        Entry entry = probation.remove(key);
+        if (entry == null) {
+            entry = protectedEntries.remove(key);
+        }
+        if (entry != null) {
+            freeSlots.add(entry.slot);
+        }
+    }
+
+    /**
+     * @return reads looked up so far, hit or missed
+     */
+    public synchronized long lookups() {
+        return hits + misses;
+    }
+
+    /**
+     * @return counters in one line
+     */
+    public synchronized String report() {
+        long lookups = hits + misses;
+        double hitRatio = lookups == 0 ? 0 : (double) hits / lookups;
+        return String.format("chunk cache: hits=%d misses=%d hitRatio=%.2f evictions=%d rejected=%d probation=%d protected=%d free=%d",
+                hits, misses, hitRatio, evictions, rejected, probation.size(), protectedEntries.size(), freeSlots.size());
+    }
+
+    /**
+     * @return fill of the chunk, null if none was started
+     */
+    private Fill endFill(String key) {
+        Fill fill = fills.get(key);
+        if (fill != null && --fill.readers == 0) {
+            fills.remove(key);
+        }
+        return fill;
+    }
+
+    /**
+     * Move entry to protected, demoting the least recently used protected entry to probation
+     * if protected is full
+     */
+    private void promote(String key, Entry entry) {
+        if (protectedEntries.size() >= maxProtected) {
+            Iterator<Map.Entry<String, Entry>> eldest = protectedEntries.entrySet().iterator();
+            Map.Entry<String, Entry> demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+        protectedEntries.put(key, entry);
+    }
+
+    /**
+     * Free the slot of the least recently used probation entry, or protected entry if
+     * probation is empty
+     */
+    private void evict() {
+        LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedEntries : probation;
+        Iterator<Entry> eldest = segment.values().iterator();
+        Entry victim = eldest.next();
+        eldest.remove();
+        freeSlots.add(victim.slot);
+        evictions++;
+    }
+
+    /**
+     * @param slot slot index
+     * @return view of the slot, positioned at its start
+     */
+    private ByteBuffer slotBuffer(int slot) {
+        ByteBuffer view = slabs[slot / SLOTS_PER_SLAB].duplicate();
+        int start = (slot % SLOTS_PER_SLAB) * FileChunk.FIXED_SIZE;
+        view.limit(start + FileChunk.FIXED_SIZE);
+        view.position(start);
+        return view;
+    }
+}
@@ -0,0 +1,166 @@
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C of every 512-byte block of one version of a chunk, the last block may be shorter.
+ * Immutable, so the length and the checksums read together always belong to the same data.
+ * Range reads verify only the blocks they touch.
+ */
+public class ChunkChecksums {
+    public static final int BLOCK_SIZE = 512;
+
+    // bytes of data covered
+    final int length;
+    final int[] sums;
+
+    ChunkChecksums(int length, int[] sums) {
+        this.length = length;
+        this.sums = sums;
+    }
+
+    /**
+     * @param data whole chunk, null for an empty one
+     * @return checksums of data
+     */
+    public static ChunkChecksums of(byte[] data) {
+        if (data == null) {
+            return new ChunkChecksums(0, new int[0]);
+        }
+        return new ChunkChecksums(data.length, compute(data, 0, data.length));
+    }
+
+    /**
+     * @param length bytes of chunk
+     * @return number of blocks
+     */
+    public static int blockCount(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @param offset in chunk
+     * @return start of block holding offset
+     */
+    public static int alignDown(int offset) {
+        return offset / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * @param end offset in chunk
+     * @return end of block holding the byte before end, cut at the end of chunk
+     */
+    public int alignUp(int end) {
+        return Math.min(blockCount(end) * BLOCK_SIZE, length);
+    }
+
+    /**
+     * @return start of the last block, the one data appended to changes
+     */
+    public int lastBlockStart() {
+        return alignDown(length);
+    }
+
+    /**
+     * Checksums after an append, only the last block and the new ones are computed
+     *
+     * @param tail bytes of chunk from lastBlockStart to the end
+     * @param data bytes appended
+     * @return checksums of the longer chunk
+     */
+    public ChunkChecksums append(byte[] tail, byte[] data) {
+        byte[] changed = new byte[tail.length + data.length];
+        System.arraycopy(tail, 0, changed, 0, tail.length);
+        System.arraycopy(data, 0, changed, tail.length, data.length);
+
+        int kept = lastBlockStart() / BLOCK_SIZE;
+        int[] added = compute(changed, 0, changed.length);
+        int[] all = new int[kept + added.length];
+        System.arraycopy(sums, 0, all, 0, kept);
+        System.arraycopy(added, 0, all, kept, added.length);
+        return new ChunkChecksums(length + data.length, all);
+    }
+
+    /**
+     * @param start block aligned offset
+     * @param end   offset, block aligned or end of chunk
+     * @return checksums of the blocks in between
+     */
+    public int[] sums(int start, int end) {
+        int first = start / BLOCK_SIZE;
+        int count = Math.max(0, blockCount(end) - first);
+        int[] range = new int[count];
+        System.arraycopy(sums, first, range, 0, count);
+        return range;
+    }
+
+    /**
+     * @param data  bytes of chunk from start
+     * @param start block aligned offset
+     * @return offset in chunk of the first block which does not match, -1 if all match
+     */
+    public int verify(byte[] data, int start) {
+        if (start + data.length > length) {
+            return start;
+        }
+        int bad = firstBadBlock(data, sums(start, start + data.length));
+        return bad < 0 ? -1 : start + bad * BLOCK_SIZE;
+    }
+
+    /**
+     * @param data block aligned bytes
+     * @param sums checksums of the blocks of data
+     * @return index of the first block which does not match, -1 if all match
+     */
+    public static int firstBadBlock(byte[] data, int[] sums) {
+        if (blockCount(data.length) != sums.length) {
+            return 0;
+        }
+        for (int i = 0; i < sums.length; i++) {
+            int off = i * BLOCK_SIZE;
+            if (Crc32c.of(data, off, Math.min(BLOCK_SIZE, data.length - off)) != sums[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return length then checksums, as kept on disk
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * sums.length);
+        buffer.putInt(length);
+        for (int sum : sums) {
+            buffer.putInt(sum);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param bytes written by toBytes
+     * @return checksums, null if bytes are not a whole encoding
+     */
+    public static ChunkChecksums fromBytes(byte[] bytes) {
+        if (bytes.length < 4) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int length = buffer.getInt();
+        if (length < 0 || length > FileChunk.FIXED_SIZE || bytes.length != 4 + 4 * blockCount(length)) {
+            return null;
+        }
+        int[] sums = new int[blockCount(length)];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = buffer.getInt();
+        }
+        return new ChunkChecksums(length, sums);
+    }
+
+    private static int[] compute(byte[] data, int off, int len) {
+        int[] sums = new int[blockCount(len)];
+        for (int i = 0; i < sums.length; i++) {
+            int blockOff = i * BLOCK_SIZE;
+            sums[i] = Crc32c.of(data, off + blockOff, Math.min(BLOCK_SIZE, len - blockOff));
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.Collection;
+
+/**
+ * Storage engine keeping the data of the chunks of one file server. Chunk metadata stays in
+ * FileInfo, the store is asked for bytes by chunk control block. Callers serialize changes of
+ * one chunk, reads may run at any time.
+ */
+public interface ChunkStore {
+    /**
+     * Rebuild chunk metadata, checksums included, from what is on disk, run once before any
+     * other call
+     *
+     * @param fileInfo metadata to fill
+     */
+    void recover(FileInfo fileInfo);
+
+    /**
+     * Read part of a chunk, not verified
+     *
+     * @param chunk  chunk controller block
+     * @param offset offset inside the chunk
+     * @param length bytes to read
+     * @return the data read, null if chunk is not stored or shorter
+     */
+    byte[] read(FileChunk chunk, int offset, int length);
+
+    /**
+     * Open a byte range of a chunk to be sent as response payload
+     *
+     * @param chunk  chunk controller block
+     * @param offset first byte
+     * @param length bytes to send
+     * @return region owning an open file channel, null if chunk can not be opened
+     */
+    FileRegion openRegion(FileChunk chunk, int offset, int length);
+
+    /**
+     * Replace the whole chunk
+     *
+     * @param chunk     controller block
+     * @param data      new content, null for an empty chunk
+     * @param checksums of the new content, kept with it
+     * @return -1 if write fails, otherwise the size written
+     */
+    int write(FileChunk chunk, byte[] data, ChunkChecksums checksums);
+
+    /**
+     * Add data after the actual length of the chunk, which must already be stored
+     *
+     * @param chunk     controller block, actual length not yet updated
+     * @param data      data to add, fits in the chunk
+     * @param checksums of the whole chunk after the append, kept with it
+     * @return -1 if fails, otherwise the size appended
+     */
+    int append(FileChunk chunk, byte[] data, ChunkChecksums checksums);
+
+    /**
+     * Force changes made so far to disk, the changes of chunks given at least. Not called
+     * concurrently
+     *
+     * @param chunks written or appended since last sync, a chunk may be given more than once
+     * @return false if some change may not be on disk
+     */
+    boolean sync(Collection<FileChunk> chunks);
+
+    /**
+     * Remove a chunk
+     *
+     * @param chunk controller block
+     * @return true if it was stored
+     */
+    boolean delete(FileChunk chunk);
+}
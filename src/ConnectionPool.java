@@ -0,0 +1,496 @@
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of keep-alive connections, a few per remote endpoint.
+ * Clients, file servers and meta server share it for every request/response exchange
+ * instead of opening a socket per call.
+ * <p>
+ * Connections are multiplexed: each exchange takes a stream ID, many exchanges can be in
+ * flight on one connection, and a reader thread per connection hands every response to
+ * the caller waiting on its stream ID. A new connection is only opened when all existing
+ * ones carry the max number of streams.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_MAX_PER_ENDPOINT = 8;
+    public static final int DEFAULT_MAX_STREAMS_PER_CONNECTION = 32;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 3000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+    // max connections to one endpoint
+    int maxPerEndpoint = DEFAULT_MAX_PER_ENDPOINT;
+    // in-flight exchanges on one connection before another connection is opened
+    int maxStreamsPerConnection = DEFAULT_MAX_STREAMS_PER_CONNECTION;
+    // connection without exchange for longer than this is closed
+    long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    // max time to wait for the response of one exchange
+    int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    // offered in HELLO of every new connection, used on connections where peer agrees
+    FrameCompressor compressor = new FrameCompressor();
+
+    public ConnectionPool() {
+        startEvictor();
+    }
+
+    /**
+     * Build pool from optional &lt;connectionPool&gt; element of XML config
+     *
+     * @param poolNode element, may be null
+     * @return pool with defaults overridden by config
+     */
+    public static ConnectionPool fromConfig(Node poolNode) {
+        ConnectionPool pool = new ConnectionPool();
+        if (poolNode == null) {
+            return pool;
+        }
+
+        NodeList poolConfig = poolNode.getChildNodes();
+        for (int j = 0; j < poolConfig.getLength(); j++) {
+            Node oneConfig = poolConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("maxPerEndpoint")) {
+                pool.maxPerEndpoint = Integer.parseInt(text);
+            }
+            if (nodeName.equals("maxStreamsPerConnection")) {
+                pool.maxStreamsPerConnection = Integer.parseInt(text);
+            }
+            if (nodeName.equals("idleTimeoutMillis")) {
+                pool.idleTimeoutMillis = Long.parseLong(text);
+            }
+            if (nodeName.equals("connectTimeoutMillis")) {
+                pool.connectTimeoutMillis = Integer.parseInt(text);
+            }
+            if (nodeName.equals("readTimeoutMillis")) {
+                pool.readTimeoutMillis = Integer.parseInt(text);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Send request and wait for its response on a pooled connection
+     *
+     * @param address remote host
+     * @param port    remote port
+     * @param request to send
+     * @return response from remote
+     * @throws IOException if no healthy connection can deliver the request
+     */
+    public ResponseEnvelop exchange(InetAddress address, int port, RequestEnvelop request) throws IOException {
+        return call(address, port, request, null).response();
+    }
+
+    /**
+     * Send ACK and wait for the ACK from remote on a pooled connection
+     *
+     * @param address remote host
+     * @param port    remote port
+     * @param ack     to send
+     * @return ACK from remote
+     * @throws IOException if no healthy connection can deliver the ACK
+     */
+    public ACKEnvelop exchangeAck(InetAddress address, int port, ACKEnvelop ack) throws IOException {
+        return call(address, port, null, ack).ack();
+    }
+
+    private WireProtocol.Frame call(InetAddress address, int port, RequestEnvelop request, ACKEnvelop ack) throws IOException {
+        MultiplexedConnection conn = acquire(address, port);
+        boolean reused = conn.exchanges > 0;
+        // only a frame never written is sent again: any later failure may come after remote
+        // applied it, and a timed out or interrupted exchange, e.g. a hedged read lost, is given up
+        try {
+            return conn.call(request, ack, readTimeoutMillis);
+        } catch (NotSentException e) {
+            if (!reused) {
+                throw e;
+            }
+            // the connection was closed by remote while idle, try once more on a new one
+            conn = acquire(address, port);
+            return conn.call(request, ack, readTimeoutMillis);
+        }
+    }
+
+    /**
+     * Failure before the frame was written, remote has not seen it
+     */
+    static class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(String message) {
+            super(message);
+        }
+
+        NotSentException(IOException cause) {
+            super(cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Pick the open connection with fewest in-flight exchanges, or open a new one if
+     * all of them are busy and the endpoint is under limit
+     *
+     * @param address remote host
+     * @param port    remote port
+     * @return connection to send one exchange on
+     * @throws IOException if connect fails
+     */
+    MultiplexedConnection acquire(InetAddress address, int port) throws IOException {
+        if (address == null) {
+            throw new IOException("Unresolved address for port " + port);
+        }
+
+        InetSocketAddress key = new InetSocketAddress(address, port);
+        Endpoint endpoint = getEndpoint(key);
+
+        synchronized (endpoint) {
+            long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+            while (true) {
+                MultiplexedConnection best = endpoint.leastLoaded();
+                int total = endpoint.connections.size() + endpoint.opening;
+                if (best != null && (best.inFlight() < maxStreamsPerConnection || total >= maxPerEndpoint)) {
+                    return best;
+                }
+                if (total < maxPerEndpoint) {
+                    break;
+                }
+
+                // all connections of the endpoint are still being opened
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Connection pool exhausted: " + key);
+                }
+                try {
+                    endpoint.wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for connection: " + key);
+                }
+            }
+            endpoint.opening++;
+        }
+
+        MultiplexedConnection conn = null;
+        try {
+            Socket sock = new Socket();
+            sock.setTcpNoDelay(true);
+            sock.setKeepAlive(true);
+            sock.connect(key, connectTimeoutMillis);
+            MultiplexedConnection opened = new MultiplexedConnection(sock);
+            opened.start();
+            if (compressor.features() != 0) {
+                try {
+                    opened.hello(compressor, connectTimeoutMillis);
+                } catch (IOException e) {
+                    opened.close();
+                    throw e;
+                }
+            }
+            conn = opened;
+            return conn;
+        } finally {
+            synchronized (endpoint) {
+                endpoint.opening--;
+                if (conn != null) {
+                    endpoint.connections.add(conn);
+                }
+                endpoint.notifyAll();
+            }
+        }
+    }
+
+    private Endpoint getEndpoint(InetSocketAddress key) {
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            synchronized (endpoints) {
+                endpoint = endpoints.get(key);
+                if (endpoint == null) {
+                    endpoint = new Endpoint(key);
+                    endpoints.put(key, endpoint);
+                }
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Close connections which carry no exchange and are unused for longer than idle timeout
+     */
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints.values()) {
+            synchronized (endpoint) {
+                Iterator<MultiplexedConnection> iterator = endpoint.connections.iterator();
+                while (iterator.hasNext()) {
+                    MultiplexedConnection conn = iterator.next();
+                    if (conn.closed || (conn.inFlight() == 0 && now - conn.lastUsed > idleTimeoutMillis)) {
+                        iterator.remove();
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void startEvictor() {
+        Thread evictor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1000, idleTimeoutMillis / 2));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    evictIdle();
+                }
+            }
+        });
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Open connections to one remote endpoint, guarded by the endpoint itself
+     */
+    static class Endpoint {
+        final InetSocketAddress address;
+        final List<MultiplexedConnection> connections = new ArrayList<>();
+        // connections being opened, counted against the limit
+        int opening = 0;
+
+        Endpoint(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Drop closed connections and find the open one with fewest in-flight exchanges
+         *
+         * @return connection or null if there is no open one
+         */
+        MultiplexedConnection leastLoaded() {
+            MultiplexedConnection best = null;
+            Iterator<MultiplexedConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                MultiplexedConnection conn = iterator.next();
+                if (conn.closed) {
+                    iterator.remove();
+                    continue;
+                }
+                if (best == null || conn.inFlight() < best.inFlight()) {
+                    best = conn;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * One keep-alive socket shared by concurrent exchanges
+     */
+    static class MultiplexedConnection implements Runnable {
+        final Socket socket;
+        final InputStream input;
+        final OutputStream output;
+
+        // exchanges waiting for their response, by stream ID
+        final Map<Integer, PendingCall> pending = new ConcurrentHashMap<>();
+        final AtomicInteger nextStreamID = new AtomicInteger();
+
+        // set once peer agreed on compression in HELLO
+        volatile FrameCompressor compressor;
+
+        volatile boolean closed = false;
+        volatile long lastUsed;
+        volatile int exchanges = 0;
+
+        MultiplexedConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = socket.getOutputStream();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        void start() {
+            Thread reader = new Thread(this, "pool-reader-" + socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        int inFlight() {
+            return pending.size();
+        }
+
+        /**
+         * Send one request or ACK and wait for the frame answering it
+         *
+         * @param request       request to send, or null
+         * @param ack           ACK to send if request is null
+         * @param timeoutMillis max time to wait for answer
+         * @return answering frame
+         * @throws IOException if connection fails or answer does not come in time
+         */
+        WireProtocol.Frame call(RequestEnvelop request, ACKEnvelop ack, int timeoutMillis) throws IOException {
+            int streamID = newStreamID();
+            byte[] frame = request != null ? WireProtocol.requestFrame(request, streamID)
+                    : WireProtocol.ackFrame(ack, streamID);
+
+            FrameCompressor agreed = compressor;
+            if (agreed != null) {
+                frame = agreed.compress(frame);
+            }
+
+            WireProtocol.Frame answer = send(streamID, frame, timeoutMillis);
+            exchanges++;
+            return answer;
+        }
+
+        /**
+         * Offer features to peer, enable compression if peer agrees
+         *
+         * @param offered       compressor of this process
+         * @param timeoutMillis max time to wait for answer
+         * @throws IOException if connection fails or answer does not come in time
+         */
+        void hello(FrameCompressor offered, int timeoutMillis) throws IOException {
+            int streamID = newStreamID();
+            WireProtocol.Frame answer = send(streamID, WireProtocol.helloFrame(offered.features(), streamID), timeoutMillis);
+            if ((offered.agree(answer.hello()) & WireProtocol.FEATURE_DEFLATE) != 0) {
+                compressor = offered;
+            }
+        }
+
+        private int newStreamID() {
+            int streamID = nextStreamID.incrementAndGet() & Integer.MAX_VALUE;
+            if (streamID == 0) {
+                // 0 is for frames nobody answers
+                streamID = nextStreamID.incrementAndGet() & Integer.MAX_VALUE;
+            }
+            return streamID;
+        }
+
+        private WireProtocol.Frame send(int streamID, byte[] frame, int timeoutMillis) throws IOException {
+            PendingCall call = new PendingCall();
+            pending.put(streamID, call);
+            try {
+                synchronized (output) {
+                    if (closed) {
+                        throw new NotSentException("Connection closed: " + socket.getRemoteSocketAddress());
+                    }
+                    try {
+                        WireProtocol.writeFrame(output, frame);
+                    } catch (IOException e) {
+                        throw new NotSentException(e);
+                    }
+                }
+                return call.await(timeoutMillis);
+            } catch (IOException e) {
+                // late or abandoned answer is dropped by reader, connection is still good
+                if (!(e instanceof InterruptedIOException)) {
+                    close();
+                }
+                throw e;
+            } finally {
+                pending.remove(streamID);
+                lastUsed = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Reader loop, hand every incoming frame to the exchange waiting on its stream ID
+         */
+        @Override
+        public void run() {
+            IOException failure;
+            try {
+                while (true) {
+                    WireProtocol.Frame frame = WireProtocol.readFrame(input);
+                    PendingCall call = pending.get(frame.streamID);
+                    if (call == null) {
+                        // caller gave up waiting
+                        System.out.println("Drop frame of unknown stream " + frame.streamID);
+                        continue;
+                    }
+                    call.complete(frame, null);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (!closed) {
+                System.out.println(socket.getRemoteSocketAddress() + ": " + failure.toString());
+            }
+            close();
+            for (PendingCall call : pending.values()) {
+                call.complete(null, failure);
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answer slot of one in-flight exchange
+     */
+    static class PendingCall {
+        private WireProtocol.Frame frame;
+        private IOException failure;
+        private boolean done = false;
+
+        synchronized void complete(WireProtocol.Frame frame, IOException failure) {
+            if (done) {
+                return;
+            }
+            this.frame = frame;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized WireProtocol.Frame await(long timeoutMillis) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!done) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No response within " + timeoutMillis + " ms");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for response");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Connection failed: " + failure.getMessage(), failure);
+            }
+            return frame;
+        }
+    }
+}
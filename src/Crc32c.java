@@ -0,0 +1,79 @@
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI and ext4, which detects more error patterns
+ * than CRC-32 for the same cost. Java 7 has no implementation, this one is table driven and
+ * consumes eight bytes per step (slicing-by-8).
+ */
+public class Crc32c implements Checksum {
+    // reversed Castagnoli polynomial
+    static final int POLYNOMIAL = 0x82F63B78;
+
+    // TABLE[k][b] is the CRC of byte b followed by k zero bytes
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[0][b] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            for (int k = 1; k < 8; k++) {
+                int previous = TABLE[k - 1][b];
+                TABLE[k][b] = (previous >>> 8) ^ TABLE[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    /**
+     * @param data buffer
+     * @param off  first byte
+     * @param len  bytes
+     * @return checksum of the bytes
+     */
+    public static int of(byte[] data, int off, int len) {
+        Crc32c checksum = new Crc32c();
+        checksum.update(data, off, len);
+        return (int) checksum.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+
+        while (end - off >= 8) {
+            c ^= (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+            c = TABLE[7][c & 0xff] ^ TABLE[6][(c >>> 8) & 0xff]
+                    ^ TABLE[5][(c >>> 16) & 0xff] ^ TABLE[4][c >>> 24]
+                    ^ TABLE[3][b[off + 4] & 0xff] ^ TABLE[2][b[off + 5] & 0xff]
+                    ^ TABLE[1][b[off + 6] & 0xff] ^ TABLE[0][b[off + 7] & 0xff];
+            off += 8;
+        }
+        while (off < end) {
+            c = (c >>> 8) ^ TABLE[0][(c ^ b[off++]) & 0xff];
+        }
+
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
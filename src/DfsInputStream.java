@@ -0,0 +1,267 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Seekable stream over one file. Chunks are fetched when the stream reaches them, and the next
+ * prefetchChunks chunks are fetched in background meanwhile, so a sequential scan rarely waits.
+ * At most prefetchChunks + 1 chunks are held, whatever the size of the file. Positional reads
+ * do not move the stream and do not read ahead.
+ */
+public class DfsInputStream extends InputStream {
+    final FileClient client;
+    final String fileName;
+    // locations and length of the file, refreshed when a chunk can not be read
+    private volatile LocationCache.Entry entry;
+    final int prefetchChunks;
+
+    private long position = 0;
+    // chunk being read and the ones fetched ahead, chunk ID -> data
+    private final TreeMap<Integer, Future<byte[]>> window = new TreeMap<>();
+    private boolean closed = false;
+
+    DfsInputStream(FileClient client, String fileName, LocationCache.Entry entry, int prefetchChunks) {
+        this.client = client;
+        this.fileName = fileName;
+        this.entry = entry;
+        this.prefetchChunks = Math.max(prefetchChunks, 0);
+    }
+
+    /**
+     * @return bytes in file when it was last located, the last chunk counted full if meta
+     * server did not report its length
+     */
+    public long length() {
+        return entry.length();
+    }
+
+    /**
+     * @return offset of next byte to read
+     */
+    public synchronized long getPos() {
+        return position;
+    }
+
+    /**
+     * Move to offset, the next read starts there
+     *
+     * @param offset in file
+     * @throws IOException if offset is outside the file or stream is closed
+     */
+    public synchronized void seek(long offset) throws IOException {
+        checkOpen();
+        if (offset < 0 || offset > length()) {
+            throw new EOFException("Seek to " + offset + " outside " + fileName + " of " + length() + " bytes");
+        }
+        position = offset;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] one = new byte[1];
+        int num = read(one, 0, 1);
+        return num < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length()) {
+            return -1;
+        }
+
+        int chunkID = (int) (position / FileChunk.FIXED_SIZE);
+        byte[] chunk = windowChunk(chunkID);
+        int inChunk = (int) (position % FileChunk.FIXED_SIZE);
+        int num = Math.min(len, chunk.length - inChunk);
+        if (num <= 0) {
+            if (isLastChunk(chunkID)) {
+                // file ends inside its last chunk, its length was not known or is stale
+                return -1;
+            }
+            // chunk shorter than its reported length
+            throw new EOFException("Chunk " + chunkID + " of " + fileName + " ends early");
+        }
+
+        System.arraycopy(chunk, inChunk, b, off, num);
+        position += num;
+        return num;
+    }
+
+    /**
+     * Read from an offset without moving the stream
+     *
+     * @param offset in file
+     * @param b      buffer
+     * @param off    start in buffer
+     * @param len    max bytes to read
+     * @return bytes read, -1 at end of file
+     * @throws IOException if no copy of the chunk can be read, or a chunk but the last ends early
+     */
+    public int read(long offset, byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (offset >= length()) {
+            return -1;
+        }
+
+        int chunkID = (int) (offset / FileChunk.FIXED_SIZE);
+        int inChunk = (int) (offset % FileChunk.FIXED_SIZE);
+        int num = (int) Math.min(len, Math.min(FileChunk.FIXED_SIZE - inChunk, length() - offset));
+        byte[] data = fetch(chunkID, inChunk, num);
+        if (num > 0 && data.length == 0) {
+            if (isLastChunk(chunkID)) {
+                // file ends inside its last chunk, its length was not known or is stale
+                return -1;
+            }
+            // chunk shorter than its reported length
+            throw new EOFException("Chunk " + chunkID + " of " + fileName + " ends early");
+        }
+        System.arraycopy(data, 0, b, off, data.length);
+        return data.length;
+    }
+
+    /**
+     * Read exactly len bytes from an offset without moving the stream
+     *
+     * @param offset in file
+     * @param b      buffer
+     * @param off    start in buffer
+     * @param len    bytes to read
+     * @throws IOException if file ends before or no copy of a chunk can be read
+     */
+    public void readFully(long offset, byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int num = read(offset + done, b, off + done, len - done);
+            if (num < 0) {
+                throw new EOFException("End of " + fileName + " at " + (offset + done));
+            }
+            done += num;
+        }
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        checkOpen();
+        long skipped = Math.max(0, Math.min(n, length() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        checkOpen();
+        return (int) Math.min(Integer.MAX_VALUE, length() - position);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<byte[]> pending : window.values()) {
+            pending.cancel(false);
+        }
+        window.clear();
+    }
+
+    private boolean isLastChunk(int chunkID) {
+        return chunkID >= entry.locations.size() - 1;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream of " + fileName + " is closed");
+        }
+    }
+
+    /**
+     * Data of chunk being read, slides the window so that it covers this chunk and the
+     * prefetchChunks after it
+     *
+     * @param chunkID chunk ID
+     * @return whole chunk
+     * @throws IOException if no copy of the chunk can be read
+     */
+    private byte[] windowChunk(int chunkID) throws IOException {
+        int lastChunk = Math.max(chunkID, Math.min(chunkID + prefetchChunks, entry.locations.size() - 1));
+
+        // chunks left behind or beyond the window after a seek
+        Iterator<Map.Entry<Integer, Future<byte[]>>> itor = window.entrySet().iterator();
+        while (itor.hasNext()) {
+            Map.Entry<Integer, Future<byte[]>> held = itor.next();
+            if (held.getKey() < chunkID || held.getKey() > lastChunk) {
+                held.getValue().cancel(false);
+                itor.remove();
+            }
+        }
+
+        for (int id = chunkID; id <= lastChunk; id++) {
+            if (!window.containsKey(id)) {
+                window.put(id, prefetch(id));
+            }
+        }
+
+        try {
+            return window.get(chunkID).get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading " + fileName, e);
+        } catch (ExecutionException e) {
+            // not kept, the next read fetches it again
+            window.remove(chunkID);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Future<byte[]> prefetch(final int chunkID) {
+        final long chunkStart = (long) chunkID * FileChunk.FIXED_SIZE;
+        final int chunkLength = (int) Math.min(FileChunk.FIXED_SIZE, length() - chunkStart);
+        return client.chunkExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return fetch(chunkID, 0, chunkLength);
+            }
+        });
+    }
+
+    /**
+     * Read part of a chunk from any of its copies, asking meta server for fresh locations once
+     * if none of the cached copies serves it
+     *
+     * @param chunkID chunk ID
+     * @param offset  offset inside the chunk
+     * @param length  data length
+     * @return data
+     * @throws IOException if no copy of the chunk can be read
+     */
+    private byte[] fetch(int chunkID, int offset, int length) throws IOException {
+        LocationCache.Entry locations = entry;
+        byte[] data = client.readChunk(fileName, locations, chunkID, offset, length);
+        if (data != null) {
+            return data;
+        }
+
+        LocationCache.Entry fresh = client.locate(fileName);
+        if (fresh != null && chunkID < fresh.locations.size()) {
+            entry = fresh;
+            data = client.readChunk(fileName, fresh, chunkID, offset, length);
+        }
+        if (data == null) {
+            throw new IOException("Chunk " + chunkID + " of " + fileName + " is not available");
+        }
+        return data;
+    }
+}
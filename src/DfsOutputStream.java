@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Stream creating one file. Data is buffered one chunk at a time. Every full chunk is allocated
+ * on meta server when it fills up and written to its file servers in background while the caller
+ * fills the next one. At most writeBehindChunks chunks are being written at the same time, the
+ * caller waits beyond that, so memory stays bounded whatever the size of the file. The last,
+ * partial chunk is written on close, as every chunk but the last must be full.
+ */
+public class DfsOutputStream extends OutputStream {
+    final FileClient client;
+    final String fileName;
+    final int writeBehindChunks;
+
+    private byte[] buffer = new byte[FileChunk.FIXED_SIZE];
+    private int count = 0;
+    // next chunk to allocate
+    private int nextChunk = 0;
+    // chunk writes in background, oldest first
+    private final ArrayDeque<Future<Integer>> inFlight = new ArrayDeque<>();
+    // first failure of a background write, reported by every later call
+    private IOException failure;
+    private boolean closed = false;
+
+    DfsOutputStream(FileClient client, String fileName, int writeBehindChunks) {
+        this.client = client;
+        this.fileName = fileName;
+        this.writeBehindChunks = Math.max(writeBehindChunks, 1);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            int num = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, num);
+            count += num;
+            off += num;
+            len -= num;
+
+            if (count == buffer.length) {
+                writeChunk(buffer);
+                buffer = new byte[FileChunk.FIXED_SIZE];
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Wait until all full chunks are written. The partial last chunk is kept until close
+     *
+     * @throws IOException if a chunk write failed
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        while (!inFlight.isEmpty()) {
+            waitOldest();
+        }
+    }
+
+    /**
+     * Write the last chunk and wait until all chunks are written
+     *
+     * @throws IOException if a chunk write failed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            checkOpen();
+            // an empty file still has one empty chunk
+            if (count > 0 || nextChunk == 0) {
+                writeChunk(Arrays.copyOf(buffer, count));
+            }
+            while (!inFlight.isEmpty()) {
+                waitOldest();
+            }
+        } catch (IOException e) {
+            for (Future<Integer> pending : inFlight) {
+                pending.cancel(false);
+            }
+            ArrayList<Integer> chunks = new ArrayList<>();
+            for (int i = 0; i < nextChunk; i++) {
+                chunks.add(i);
+            }
+            client.sendACKTOMeta(fileName, chunks, false);
+            throw e;
+        } finally {
+            closed = true;
+            buffer = null;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream of " + fileName + " is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Allocate next chunk and write it in background, after waiting for room
+     *
+     * @param data whole chunk, or the last one
+     * @throws IOException if chunk can not be allocated or an earlier write failed
+     */
+    private void writeChunk(byte[] data) throws IOException {
+        while (inFlight.size() >= writeBehindChunks) {
+            waitOldest();
+        }
+
+        int chunkID = nextChunk;
+        ResponseEnvelop allocated = client.allocateChunk(fileName, chunkID);
+        nextChunk++;
+
+        int location = allocated.chunksLocation.get(0);
+        List<Integer> replicas = FileClient.nextReplicas(
+                allocated.chunksReplicas == null ? null : allocated.chunksReplicas.iterator());
+        inFlight.add(client.chunkExecutor.submit(
+                client.chunkWrite(false, data, location, replicas, fileName, chunkID)));
+    }
+
+    private void waitOldest() throws IOException {
+        Future<Integer> oldest = inFlight.poll();
+        int ret;
+        try {
+            ret = oldest.get();
+        } catch (InterruptedException e) {
+            failure = new IOException("Interrupted while writing " + fileName, e);
+            throw failure;
+        } catch (ExecutionException e) {
+            failure = new IOException("Write of " + fileName + " fail", e.getCause());
+            throw failure;
+        }
+
+        if (ret < 0) {
+            failure = new IOException("Write of " + fileName + " fail: " + ret);
+            throw failure;
+        }
+    }
+}
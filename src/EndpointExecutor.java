@@ -0,0 +1,94 @@
+import java.util.concurrent.*;
+
+/**
+ * Runs the blocking handlers of one server endpoint. Every accepted connection gets its reader
+ * task on a cached pool of daemon threads, so threads are reused across connections instead of
+ * created per connection and the accept loop never waits for a handler. Requests run on at
+ * most maxConcurrent worker threads; a request is handed over only once a worker slot is free,
+ * so a reader with more requests than slots waits and stops reading its connection.
+ */
+public class EndpointExecutor implements Executor {
+    public static final int DEFAULT_MAX_CONCURRENT = 64;
+    public static final long DEFAULT_IDLE_THREAD_MILLIS = 60000;
+
+    // executor whose worker runs the current thread, null on other threads
+    private static final ThreadLocal<EndpointExecutor> RUNNING = new ThreadLocal<>();
+
+    final String name;
+    final int maxConcurrent;
+    // one per request running or waiting for a worker
+    final Semaphore permits;
+    final ExecutorService connectionThreads;
+    final ThreadPoolExecutor workers;
+
+    /**
+     * @param name             used to name threads
+     * @param maxConcurrent    max requests executed at the same time
+     * @param idleThreadMillis idle thread older than this exits
+     */
+    public EndpointExecutor(final String name, int maxConcurrent, long idleThreadMillis) {
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.permits = new Semaphore(this.maxConcurrent, true);
+        this.connectionThreads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, idleThreadMillis, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), daemonThreads(name + "-conn"));
+        this.workers = new ThreadPoolExecutor(this.maxConcurrent, this.maxConcurrent, idleThreadMillis,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), daemonThreads(name));
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + "-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Run reader of one connection, which lives as long as the connection
+     *
+     * @param task connection handler
+     */
+    public void executeConnection(Runnable task) {
+        connectionThreads.execute(task);
+    }
+
+    /**
+     * Run one request on a worker, waiting for a free slot first. A request submitted by a
+     * worker of this executor runs at once on that worker, which already holds a slot
+     *
+     * @param task request handler
+     */
+    @Override
+    public void execute(final Runnable task) {
+        if (RUNNING.get() == this) {
+            task.run();
+            return;
+        }
+
+        permits.acquireUninterruptibly();
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RUNNING.set(EndpointExecutor.this);
+                    try {
+                        task.run();
+                    } finally {
+                        RUNNING.remove();
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+}
@@ -1,13 +1,16 @@
-import java.io.Serializable;
-
-public class FileChunk implements Comparable<FileChunk>, Serializable {
+public class FileChunk implements Comparable<FileChunk> {
+    // chunk size in bytes
     public static final int FIXED_SIZE = 8192;
     String realFileName;
     int chunkID;
+    // bytes of data, chunk files hold the data only
     int actualLength;
 
     int version = 0;
 
+    // checksums of the data on this server, replaced as a whole on every change
+    volatile ChunkChecksums checksums;
+
     public FileChunk(String realFileName, int chunkID, int actualLength) {
         this.realFileName = realFileName;
         this.chunkID = chunkID;
@@ -0,0 +1,220 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Store keeping every chunk in its own file of storage directory, named after the chunk and
+ * holding its data only. Checksums of a chunk are kept in a small file next to it
+ */
+public class FileChunkStore implements ChunkStore {
+    final String dir;
+
+    public FileChunkStore(String dir) {
+        this.dir = dir;
+    }
+
+    private File chunkFile(FileChunk chunk) {
+        return new File(dir + "/" + chunk.getChunkName());
+    }
+
+    private File checksumFile(FileChunk chunk) {
+        return new File(dir + "/" + chunk.getChunkName() + FileInfo.CHECKSUM_SUFFIX);
+    }
+
+    @Override
+    public void recover(FileInfo fileInfo) {
+        fileInfo.recoverFileInfoFromDisk();
+
+        for (Map.Entry<String, List<FileChunk>> pair : fileInfo) {
+            for (FileChunk chunk : pair.getValue()) {
+                chunk.checksums = readChecksums(chunk);
+                if (chunk.checksums != null && chunk.checksums.length == chunk.actualLength) {
+                    continue;
+                }
+
+                // written before checksums were kept, or crashed between data and checksums
+                byte[] data = read(chunk, 0, chunk.actualLength);
+                if (data == null) {
+                    // not served until a replica copies it again
+                    System.out.println("Chunk " + chunk + " not readable");
+                    continue;
+                }
+                chunk.checksums = ChunkChecksums.of(data);
+                if (!writeChecksums(chunk, chunk.checksums)) {
+                    System.out.println("Checksums of " + chunk + " not kept");
+                }
+            }
+        }
+    }
+
+    private ChunkChecksums readChecksums(FileChunk chunk) {
+        File file = checksumFile(chunk);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return ChunkChecksums.fromBytes(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private boolean writeChecksums(FileChunk chunk, ChunkChecksums checksums) {
+        try (FileOutputStream output = new FileOutputStream(checksumFile(chunk))) {
+            output.write(checksums.toBytes());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public byte[] read(FileChunk chunk, int offset, int length) {
+        try (FileChannel channel = new FileInputStream(chunkFile(chunk)).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    System.out.println("Chunk " + chunk + " shorter than " + (offset + length));
+                    return null;
+                }
+            }
+            return buffer.array();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public FileRegion openRegion(FileChunk chunk, int offset, int length) {
+        try {
+            FileChannel channel = new FileInputStream(chunkFile(chunk)).getChannel();
+            return new FileRegion(channel, offset, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public int write(FileChunk chunk, byte[] data, ChunkChecksums checksums) {
+        File file = chunkFile(chunk);
+
+        try {
+            boolean bCr = file.createNewFile();
+
+            if (!bCr) {
+                System.out.println("File " + file);
+            }
+
+            try (FileOutputStream output = new FileOutputStream(file)) {
+                // no padding, length of file is length of chunk, an empty chunk is an empty file
+                if (data != null) {
+                    output.write(data);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+
+        if (!writeChecksums(chunk, checksums)) {
+            return -1;
+        }
+        return data == null ? 0 : data.length;
+    }
+
+    @Override
+    public int append(FileChunk chunk, byte[] data, ChunkChecksums checksums) {
+        File file = chunkFile(chunk);
+        if (!file.exists()) {
+            System.out.println("Append must occur when the specified chunk already in disk");
+            return -1;
+        }
+
+        // only the appended bytes are written, the rest of the chunk is not touched
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, chunk.actualLength + buffer.position());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+
+        if (!writeChecksums(chunk, checksums)) {
+            return -1;
+        }
+        return data.length;
+    }
+
+    @Override
+    public boolean sync(Collection<FileChunk> chunks) {
+        Map<String, FileChunk> distinct = new LinkedHashMap<>();
+        for (FileChunk chunk : chunks) {
+            distinct.put(chunk.getChunkName(), chunk);
+        }
+
+        boolean durable = true;
+        for (FileChunk chunk : distinct.values()) {
+            durable &= force(chunkFile(chunk));
+            durable &= force(checksumFile(chunk));
+        }
+        // names of files created by the group
+        syncDirectory(new File(dir));
+        return durable;
+    }
+
+    /**
+     * @param file to sync, data and size
+     * @return false if sync fails, a file deleted meanwhile needs none
+     */
+    private static boolean force(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+            return true;
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Sync directory entries, so that a file created and synced is also found after a crash
+     *
+     * @param directory to sync
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform opens a directory, data of files is synced anyway
+        }
+    }
+
+    @Override
+    public boolean delete(FileChunk chunk) {
+        File checksumFile = checksumFile(chunk);
+        if (checksumFile.exists() && !checksumFile.delete()) {
+            System.out.println("Can not delete " + checksumFile);
+        }
+        return chunkFile(chunk).delete();
+    }
+}
@@ -7,8 +7,11 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class FileClient {
@@ -21,6 +24,7 @@ public class FileClient {
     public static final int FILE_NOT_EXIST = -6;
     public static final int FILE_LENGTH_EXCEED = -7;
     public static final int INVALID_COMMAND = -8;
+    public static final int CHUNK_NOT_DURABLE = -9;
 
     HashMap<Integer, FileServer> allFileServerList;
 
@@ -29,13 +33,58 @@ public class FileClient {
 
     MetaServer metaServer;
 
-    //Socket clientSock;
+    // keep-alive connections to meta server and file servers
+    ConnectionPool connectionPool;
+
+    // chunk locations of recently read files
+    LocationCache locationCache = new LocationCache();
+    // picks which copy of a chunk to read
+    ReplicaSelector replicaSelector;
+
+    // chunk requests in flight at the same time, over all file servers
+    int maxInFlightChunks = 8;
+    // runs chunk requests of one read in parallel, and read-ahead of input streams
+    ExecutorService chunkExecutor;
+    // chunks an input stream fetches ahead of the one being read
+    int prefetchChunks = 4;
+    // full chunks an output stream writes in background while the caller fills the next one
+    int writeBehindChunks = 4;
+
+    // read late beyond this percentile of its file server's recent reads is sent to another copy
+    boolean hedgedReads = true;
+    int hedgePercentile = 95;
+    // never hedge sooner than this
+    int hedgeMinDelayMillis = 2;
+    // hedged reads allowed per 100 reads
+    int hedgeBudgetPercent = 5;
+    // hundredths of a hedged read earned by reads and not yet spent, capped at HEDGE_BURST hedges
+    private int hedgeCredits = 0;
+    static final int HEDGE_BURST = 10;
+    // runs the copies of a hedged chunk read, chunk executor may be full with the reads waiting on them
+    final EndpointExecutor hedgeExecutor = new EndpointExecutor("client-hedge",
+            EndpointExecutor.DEFAULT_MAX_CONCURRENT, EndpointExecutor.DEFAULT_IDLE_THREAD_MILLIS);
+
+    // identifies data pushed to file servers until it is committed, random start so that
+    // clients do not collide
+    final AtomicInteger pushSeries = new AtomicInteger(new Random().nextInt());
 
     public FileClient(String xmlFile) {
         allFileServerList = new HashMap<>();
         parseXML(xmlFile);
         resolveMetaAddress();
         resolveAllFileServerAddress();
+        replicaSelector = new ReplicaSelector(allFileServerList);
+
+        chunkExecutor = Executors.newFixedThreadPool(maxInFlightChunks, new ThreadFactory() {
+            int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "client-chunk-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     private void resolveMetaAddress() {
@@ -45,73 +94,52 @@ public class FileClient {
     public int execute(String[] params) {
         int status = 0;
 
-        Socket clientSock;
-        try {
-            //System.out.println("Client connect to meta server: " + metaHostName + ":" + metaClientPort);
-            clientSock = new Socket(metaServer.metaServerAddress, metaServer.clientPort);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return META_SERVER_NOT_AVAILABLE;
-        }
-
         RequestEnvelop request = new RequestEnvelop(params[0], params[1]);
+        // payload of write and append, offsets and lengths are in bytes
+        byte[] payload = null;
 
-        switch (request.cmd.charAt(0)) {
-            case 'r':
-                request.addParam(params[2]); // offset
-                request.addParam(params[3]); // length
-                break;
-            case 'w':
-                request.addParam(Integer.toString(params[2].length())); // length
-                break;
-            case 'a':
-                request.addParam(Integer.toString(params[2].length())); // length
-                break;
-            default:
+        try {
+            switch (request.cmd.charAt(0)) {
+                case 'r':
+                    request.addParam(Integer.parseInt(params[2])); // offset
+                    request.addParam(Integer.parseInt(params[3])); // length
+                    break;
+                case 'w':
+                    payload = params[2].getBytes(StandardCharsets.UTF_8);
+                    request.addParam(payload.length); // length
+                    break;
+                case 'a':
+                    payload = params[2].getBytes(StandardCharsets.UTF_8);
+                    request.addParam(payload.length); // length
+                    break;
+                default:
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid command: " + Arrays.toString(params));
+            return INVALID_COMMAND;
         }
 
-        int error = sendRequestToMeta(request, clientSock);
-        if (error < 0) {
-            System.out.println("Meta server is not available");
-            return META_SERVER_NOT_AVAILABLE;
+        if (request.cmd.equals("r")) {
+            return readWithLocationCache(request.fileName, request.params.get(0), request.params.get(1));
         }
 
-        ResponseEnvelop response = receiveResponseFromMeta(clientSock);
+        ResponseEnvelop response = requestMeta(request);
         if (response == null) {
             System.out.println("Meta server is not available");
             return META_SERVER_NOT_AVAILABLE;
         }
 
-        if (!request.uuid.equals(response.requestCopy.uuid)) {
-            System.out.println("UUID of request and response not equal");
-            return CAUSAL_ORDERING_VIOLATED;
-        }
+        // this client changes the file, its cached locations go stale
+        locationCache.invalidate(request.fileName);
 
-        //System.out.println("Response UUID: " + response.uuid.toString());
-        int offset;
-        int length;
+        // the pool matches response to request by stream ID
         String fileName;
 
         switch (response.requestCopy.cmd.charAt(0)) {
-            case 'r':
-                fileName = response.requestCopy.fileName;
-                offset = Integer.valueOf(response.requestCopy.params.get(0));
-                length = Integer.valueOf(response.requestCopy.params.get(1));
-
-                String data = readData(fileName, offset, length, response.chunksToScan, response.chunksLocation);
-
-                if (data != null) {
-                    System.out.println(data);
-                } else {
-                    System.out.println("Read failure");
-                    status = -1;
-                }
-
-                break;
             case 'w':
                 fileName = response.requestCopy.fileName;
-                int ret = writeData(params[params.length - 1], fileName, response.chunksToScan, response.chunksLocation);
-                if (ret == params[params.length - 1].length()) {
+                int ret = writeData(payload, fileName, response.chunksToScan, response.chunksLocation, response.chunksReplicas);
+                if (ret == payload.length) {
                     System.out.println("Write success");
                 } else {
                     System.out.println("Failure");
@@ -127,8 +155,9 @@ public class FileClient {
                     break;
                 }
 
-                int ret1 = appendData(params[params.length - 1], fileName, Integer.valueOf(response.params.get(0)), response.chunksToScan, response.chunksLocation);
-                if (ret1 == params[params.length - 1].length()) {
+                int ret1 = appendData(payload, fileName, response.params.get(0), response.chunksToScan, response.chunksLocation,
+                        response.chunksReplicas);
+                if (ret1 == payload.length) {
                     System.out.println("Append success");
                 } else {
                     System.out.println("Failure");
@@ -139,11 +168,6 @@ public class FileClient {
             default:
         }
 
-        try {
-            clientSock.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         return status;
     }
 
@@ -166,7 +190,7 @@ public class FileClient {
      */
     @Deprecated
     @SuppressWarnings("unused")
-    private char[] readChunkData(int fileServerID, String fileName, int chunkID) {
+    private byte[] readChunkData(int fileServerID, String fileName, int chunkID) {
         return readChunkData(fileServerID, fileName, chunkID, 0, FileChunk.FIXED_SIZE);
     }
 
@@ -180,90 +204,410 @@ public class FileClient {
      * @param length       data length
      * @return data if success, otherwise null
      */
-    private char[] readChunkData(int fileServerID, String fileName, int chunkID, int offset, int length) {
+    private byte[] readChunkData(int fileServerID, String fileName, int chunkID, int offset, int length) {
         FileServer fileServer = allFileServerList.get(fileServerID);
         if (fileServer == null) {
             return null;
         }
 
         try {
-            Socket fileSock = new Socket(allFileServerList.get(fileServerID).fileServerAddress, fileServer.requestFilePort);
             RequestEnvelop request = new RequestEnvelop("r", fileName);
-            request.addParam(Integer.toString(chunkID));
-            request.addParam(Integer.toString(offset));
-            request.addParam(Integer.toString(length));
-
-            ObjectOutputStream output = new ObjectOutputStream(fileSock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
+            request.addParam(chunkID);
+            request.addParam(offset);
+            request.addParam(length);
 
-            ObjectInputStream input = new ObjectInputStream(fileSock.getInputStream());
-            ResponseEnvelop response = (ResponseEnvelop) input.readObject();
-
-            input.close();
-            fileSock.close();
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, request);
 
             if (response.error < 0) {
                 return null;
             }
-            return response.data;
 
+            // whole blocks come back, params are start of data then checksums of its blocks
+            byte[] data = response.data == null ? new byte[0] : response.data;
+            if (response.params == null || response.params.isEmpty()) {
+                return null;
+            }
+            int start = response.params.get(0);
+            int[] sums = new int[response.params.size() - 1];
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = response.params.get(i + 1);
+            }
+            int bad = ChunkChecksums.firstBadBlock(data, sums);
+            if (bad >= 0) {
+                // another copy is read, the scrubber of the file server finds this one
+                System.out.println("Checksum mismatch: " + fileName + " " + chunkID + " from " + fileServerID
+                        + " at " + (start + bad * ChunkChecksums.BLOCK_SIZE));
+                return null;
+            }
+
+            int from = Math.min(offset - start, data.length);
+            return Arrays.copyOfRange(data, from, from + Math.min(length, data.length - from));
+
+        } catch (SocketTimeoutException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InterruptedIOException e) {
+            // another copy answered a hedged read first
+            return null;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
-        } catch (ClassNotFoundException e) {
+        }
+    }
+
+    /**
+     * Read data from chunk, and keep the latency if success
+     *
+     * @param fileServerID file server ID
+     * @param fileName     file name demanded
+     * @param chunkID      chunk ID for the file
+     * @param offset       offset inside the chunk
+     * @param length       data length
+     * @return data if success, otherwise null
+     */
+    private byte[] readChunkTimed(int fileServerID, String fileName, int chunkID, int offset, int length) {
+        long start = System.nanoTime();
+        replicaSelector.begin(fileServerID);
+        byte[] data;
+        try {
+            data = readChunkData(fileServerID, fileName, chunkID, offset, length);
+        } finally {
+            replicaSelector.end(fileServerID);
+        }
+        if (data != null) {
+            replicaSelector.recordLatency(fileServerID, (System.nanoTime() - start) / 1000);
+        }
+        return data;
+    }
+
+    /**
+     * Read data from one copy of chunk, trying the next copy if one fails. A read not answered
+     * within hedgePercentile of its file server's latency is also sent to the next copy, if the
+     * hedge budget allows, and the first answer wins
+     *
+     * @param copies   file server IDs holding the chunk, -1 where none
+     * @param fileName file name demanded
+     * @param chunkID  chunk ID for the file
+     * @param offset   offset inside the chunk
+     * @param length   data length
+     * @return data if any copy served it, otherwise null
+     */
+    private byte[] readChunkFromCopies(List<Integer> copies, final String fileName, final int chunkID,
+                                       final int offset, final int length) {
+        List<Integer> ordered = replicaSelector.order(copies);
+        earnHedgeCredit();
+
+        if (!hedgedReads || ordered.size() < 2) {
+            for (Integer fileServerID : ordered) {
+                byte[] data = readChunkTimed(fileServerID, fileName, chunkID, offset, length);
+                if (data != null) {
+                    return data;
+                }
+                System.out.println("Read " + fileName + " " + chunkID + " from " + fileServerID + " fail, try next copy");
+            }
+            return null;
+        }
+
+        CompletionService<byte[]> reads = new ExecutorCompletionService<>(hedgeExecutor);
+        Map<Future<byte[]>, Integer> running = new HashMap<>();
+        int next = 0;
+        int lastSent = -1;
+        try {
+            while (true) {
+                if (running.isEmpty()) {
+                    if (next >= ordered.size()) {
+                        return null;
+                    }
+                    lastSent = ordered.get(next++);
+                    running.put(reads.submit(chunkRead(lastSent, fileName, chunkID, offset, length)), lastSent);
+                }
+
+                Future<byte[]> done;
+                long delay = next < ordered.size() ? hedgeDelayMicros(lastSent) : -1;
+                if (delay >= 0) {
+                    done = reads.poll(delay, TimeUnit.MICROSECONDS);
+                    if (done == null) {
+                        if (takeHedgeCredit()) {
+                            System.out.println("Hedge read " + fileName + " " + chunkID + " late on " + lastSent);
+                            lastSent = ordered.get(next++);
+                            running.put(reads.submit(chunkRead(lastSent, fileName, chunkID, offset, length)), lastSent);
+                            continue;
+                        }
+                        done = reads.take();
+                    }
+                } else {
+                    done = reads.take();
+                }
+
+                Integer fileServerID = running.remove(done);
+                byte[] data;
+                try {
+                    data = done.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    data = null;
+                }
+                if (data != null) {
+                    return data;
+                }
+                System.out.println("Read " + fileName + " " + chunkID + " from " + fileServerID + " fail, try next copy");
+            }
+        } catch (InterruptedException e) {
             e.printStackTrace();
+            return null;
+        } finally {
+            // losers of the race
+            for (Future<byte[]> loser : running.keySet()) {
+                loser.cancel(true);
+            }
+        }
+    }
+
+    private Callable<byte[]> chunkRead(final int fileServerID, final String fileName, final int chunkID,
+                                       final int offset, final int length) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return readChunkTimed(fileServerID, fileName, chunkID, offset, length);
+            }
+        };
+    }
+
+    /**
+     * @param fileServerID file server read from
+     * @return time to wait before hedging, -1 not to hedge while latency of file server is not known
+     */
+    private long hedgeDelayMicros(int fileServerID) {
+        long latency = replicaSelector.latencyPercentile(fileServerID, hedgePercentile);
+        if (latency < 0) {
+            return -1;
         }
+        return Math.max(latency, hedgeMinDelayMillis * 1000L);
+    }
+
+    /**
+     * Every chunk read earns hedgeBudgetPercent hundredths of a hedged read
+     */
+    private synchronized void earnHedgeCredit() {
+        hedgeCredits = Math.min(hedgeCredits + hedgeBudgetPercent, HEDGE_BURST * 100);
+    }
 
-        return null;
+    /**
+     * @return true if budget allows one more hedged read, which is then spent
+     */
+    private synchronized boolean takeHedgeCredit() {
+        if (hedgeCredits < 100) {
+            return false;
+        }
+        hedgeCredits -= 100;
+        return true;
     }
 
     /**
-     * Read data from file servers according information in returned response
+     * Read data from file servers according information in returned response. Chunks are
+     * fetched in parallel, at most maxInFlightChunks at a time, and concatenated in order
      *
-     * @param fileName       demanded file
-     * @param offset         offset in first chunk of returned
-     * @param length         data length
-     * @param chunksToScan   chunk list need to retrieve
-     * @param chunksLocation file server ID
+     * @param fileName     demanded file
+     * @param offset       offset in first chunk of returned
+     * @param length       data length
+     * @param chunksToScan chunk list need to retrieve
+     * @param chunksCopies file server IDs holding every chunk
      * @return concatenated data
      */
-    private String readData(String fileName, int offset, int length, List<Integer> chunksToScan, List<Integer> chunksLocation) {
-        if (chunksLocation == null || chunksToScan == null) {
+    private byte[] readData(final String fileName, int offset, int length, List<Integer> chunksToScan,
+                            List<List<Integer>> chunksCopies) {
+        if (chunksCopies == null || chunksToScan == null) {
             return null;
         }
 
-        StringBuilder result = new StringBuilder();
+        ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(length, 0));
 
         offset = offset % FileChunk.FIXED_SIZE;
 
         Iterator<Integer> chunkItor = chunksToScan.iterator();
-        Iterator<Integer> locationItor = chunksLocation.iterator();
+        Iterator<List<Integer>> copiesItor = chunksCopies.iterator();
+
+        // one chunk is read right here, no point in handing it over
+        boolean parallel = chunksToScan.size() > 1;
+        List<Future<byte[]>> pieces = new ArrayList<>(chunksToScan.size());
 
         while (chunkItor.hasNext()) {
-            int chunkID = chunkItor.next();
-            int location = locationItor.next();
+            final int chunkID = chunkItor.next();
+            final List<Integer> copies = copiesItor.next();
 
             int chunkRemain = FileChunk.FIXED_SIZE - offset;
-            char[] more;
-            if (length >= chunkRemain) {
-                more = readChunkData(location, fileName, chunkID, offset, chunkRemain);
+            final int chunkOffset = offset;
+            final int chunkLength = Math.min(length, chunkRemain);
+
+            if (parallel) {
+                pieces.add(chunkExecutor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return readChunkFromCopies(copies, fileName, chunkID, chunkOffset, chunkLength);
+                    }
+                }));
             } else {
-                more = readChunkData(location, fileName, chunkID, offset, length);
+                byte[] more = readChunkFromCopies(copies, fileName, chunkID, chunkOffset, chunkLength);
+                if (more == null) {
+                    return null;
+                }
+                result.write(more, 0, more.length);
             }
 
-            if (more != null) {
-                result.append(more);
-            } else {
-                //System.out.println("Failure");
+            length -= chunkLength;
+            offset = 0;
+        }
+
+        // reassemble in chunk order, whatever order the pieces arrive in
+        for (int i = 0; i < pieces.size(); i++) {
+            byte[] more;
+            try {
+                more = pieces.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                more = null;
+            }
+
+            if (more == null) {
+                for (int j = i + 1; j < pieces.size(); j++) {
+                    pieces.get(j).cancel(false);
+                }
                 return null;
             }
+            result.write(more, 0, more.length);
+        }
 
-            length -= FileChunk.FIXED_SIZE;
-            offset = 0;
+        return result.toByteArray();
+    }
+
+    /**
+     * Read file with cached chunk locations. Meta server is asked only if the file is not cached,
+     * the range goes beyond the cached chunks, or no copy of a cached chunk can be served,
+     * e.g. CHUNK_NOT_AVAILABLE after the chunk moved
+     *
+     * @param fileName demanded file
+     * @param offset   first byte to read
+     * @param length   data length
+     * @return status, 0 if success
+     */
+    private int readWithLocationCache(String fileName, int offset, int length) {
+        int firstChunk = offset / FileChunk.FIXED_SIZE;
+        int lastChunk = (offset + length - 1) / FileChunk.FIXED_SIZE;
+
+        LocationCache.Entry failed = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            LocationCache.Entry entry = locationCache.get(fileName);
+            if (entry == null || lastChunk >= entry.locations.size()) {
+                entry = locate(fileName);
+            }
+            if (entry == null || lastChunk >= entry.locations.size()) {
+                break;
+            }
+            // meta server gave the same answer again, the locations are not what failed
+            if (failed != null && entry.version == failed.version && entry.locations.equals(failed.locations)
+                    && entry.replicas.equals(failed.replicas)) {
+                break;
+            }
+
+            LinkedList<Integer> chunksToScan = new LinkedList<>();
+            LinkedList<List<Integer>> chunksCopies = new LinkedList<>();
+            for (int chunkID = firstChunk; chunkID <= lastChunk; chunkID++) {
+                chunksToScan.add(chunkID);
+                chunksCopies.add(entry.copies(chunkID));
+            }
+
+            byte[] data = readData(fileName, offset, length, chunksToScan, chunksCopies);
+            if (data != null) {
+                System.out.println(new String(data, StandardCharsets.UTF_8));
+                return SUCCESS;
+            }
+
+            locationCache.invalidate(fileName);
+            failed = entry;
         }
 
-        return result.toString();
+        System.out.println("Read failure");
+        return -1;
+    }
+
+    /**
+     * Ask meta server for locations of all copies of all chunks of the file and cache them
+     *
+     * @param fileName file
+     * @return locations, null if meta server is not available or file does not exist
+     */
+    LocationCache.Entry locate(String fileName) {
+        ResponseEnvelop response = requestMeta(new RequestEnvelop("l", fileName));
+        if (response == null || response.error < 0 || response.chunksLocation == null) {
+            return null;
+        }
+        int lastChunkLength = response.params == null || response.params.isEmpty() ? -1 : response.params.get(0);
+        return locationCache.put(fileName, response.version, response.chunksLocation, response.chunksReplicas,
+                lastChunkLength);
+    }
+
+    /**
+     * Read data from any copy of one chunk
+     *
+     * @param fileName file name demanded
+     * @param entry    locations of the file
+     * @param chunkID  chunk ID for the file
+     * @param offset   offset inside the chunk
+     * @param length   data length
+     * @return data if any copy served it, otherwise null
+     */
+    byte[] readChunk(String fileName, LocationCache.Entry entry, int chunkID, int offset, int length) {
+        return readChunkFromCopies(entry.copies(chunkID), fileName, chunkID, offset, length);
+    }
+
+    /**
+     * Ask meta server for the next chunk of a file written by an output stream
+     *
+     * @param fileName file name
+     * @param chunkID  chunk to allocate, 0 creates the file
+     * @return response carrying primary and replicas of the chunk
+     * @throws IOException if meta server is not available or refuses
+     */
+    ResponseEnvelop allocateChunk(String fileName, int chunkID) throws IOException {
+        RequestEnvelop request = new RequestEnvelop("n", fileName);
+        request.addParam(chunkID);
+
+        ResponseEnvelop response = requestMeta(request);
+        if (response == null) {
+            throw new IOException("Meta server is not available");
+        }
+        if (response.error < 0 || response.chunksLocation == null || response.chunksLocation.isEmpty()) {
+            throw new IOException("Allocate chunk " + chunkID + " of " + fileName + " fail: " + response.error);
+        }
+        return response;
+    }
+
+    /**
+     * Create file for streaming write, overwriting it if it exists. The file is replaced when
+     * the first chunk is allocated
+     *
+     * @param fileName file to write
+     * @return stream writing from start of file
+     */
+    public DfsOutputStream create(String fileName) {
+        locationCache.invalidate(fileName);
+        return new DfsOutputStream(this, fileName, writeBehindChunks);
+    }
+
+    /**
+     * Open file for streaming read
+     *
+     * @param fileName file to read
+     * @return stream positioned at start of file
+     * @throws IOException if file does not exist or meta server is not available
+     */
+    public DfsInputStream open(String fileName) throws IOException {
+        // fresh locations, the length of a cached file may be stale
+        LocationCache.Entry entry = locate(fileName);
+        if (entry == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        return new DfsInputStream(this, fileName, entry, prefetchChunks);
     }
 
     /**
@@ -275,7 +619,7 @@ public class FileClient {
      * @param chunkID      chunk ID for this file
      * @return size written if success, otherwise -1
      */
-    private int writeChunkData(char[] data, int fileServerID, String fileName, int chunkID) {
+    private int writeChunkData(byte[] data, int fileServerID, String fileName, int chunkID) {
 
         FileServer fileServer = allFileServerList.get(fileServerID);
         if (fileServer == null) {
@@ -286,32 +630,23 @@ public class FileClient {
         }
 
         try {
-            Socket fileSock = new Socket(fileServer.fileServerAddress, fileServer.requestFilePort);
             RequestEnvelop request = new RequestEnvelop("w", fileName);
-            request.addParam(Integer.toString(chunkID));
+            request.addParam(chunkID);
             request.setData(data);
 
-            ObjectOutputStream output = new ObjectOutputStream(fileSock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, request);
 
-            ObjectInputStream input = new ObjectInputStream(fileSock.getInputStream());
-            ResponseEnvelop response = (ResponseEnvelop) input.readObject();
-
-            input.close();
-            fileSock.close();
-
-            if (response.params.size() == 0) {
+            if (response.params == null || response.params.size() == 0) {
                 return response.error != 0 ? response.error : -1;
             }
 
-            if (Integer.valueOf(response.params.get(0)) == data.length) {
+            if (response.params.get(0) == data.length) {
                 return data.length;
             } else {
                 return response.error != 0 ? response.error : -1;
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
@@ -321,22 +656,24 @@ public class FileClient {
     /**
      * Write data to file servers according the information return by meta server
      *
-     * @param data           buffer
+     * @param buffer         data in bytes
      * @param fileName       file name
      * @param chunks         chunk ID list
      * @param chunkLocations file server list
+     * @param chunkReplicas  two replicas per chunk, null if meta server did not send them
      * @return size written if success, otherwise -1
      */
-    private int writeData(String data, String fileName, List<Integer> chunks, List<Integer> chunkLocations) {
+    private int writeData(byte[] buffer, String fileName, List<Integer> chunks, List<Integer> chunkLocations,
+                          List<Integer> chunkReplicas) {
         if (chunks == null || chunkLocations == null) {
             return -1;
         }
 
-        char[] buffer = data.toCharArray();
-
         Iterator<Integer> chunkItor = chunks.iterator();
         Iterator<Integer> locationItor = chunkLocations.iterator();
+        Iterator<Integer> replicaItor = chunkReplicas == null ? null : chunkReplicas.iterator();
 
+        List<Callable<Integer>> writes = new ArrayList<>(chunks.size());
         int start = 0;
         int end;
         while (chunkItor.hasNext()) {
@@ -350,10 +687,13 @@ public class FileClient {
                 // cover a whole chunk
                 end = start + FileChunk.FIXED_SIZE;
             }
-            char[] dataToWrite = Arrays.copyOfRange(buffer, start, end);
+            byte[] dataToWrite = Arrays.copyOfRange(buffer, start, end);
             start += FileChunk.FIXED_SIZE;
 
-            int ret = writeChunkData(dataToWrite, location, fileName, chunkID);
+            writes.add(chunkWrite(false, dataToWrite, location, nextReplicas(replicaItor), fileName, chunkID));
+        }
+
+        for (int ret : runChunkWrites(writes)) {
             if (ret < 0) {
                 System.out.println("Write error: " + ret);
                 sendACKTOMeta(fileName, new ArrayList<>(chunks), false);
@@ -361,7 +701,144 @@ public class FileClient {
             }
         }
 
-        return data.length();
+        return buffer.length;
+    }
+
+    /**
+     * @param replicaItor over two replicas per chunk, may be null
+     * @return replicas of the next chunk, null if unknown
+     */
+    static List<Integer> nextReplicas(Iterator<Integer> replicaItor) {
+        if (replicaItor == null || !replicaItor.hasNext()) {
+            return null;
+        }
+
+        List<Integer> replicas = Arrays.asList(replicaItor.next(), replicaItor.next());
+        return replicas.contains(-1) ? null : replicas;
+    }
+
+    /**
+     * Task writing or appending one chunk
+     *
+     * @param append       append to the chunk instead of writing it
+     * @param data         for the chunk
+     * @param fileServerID file server ID
+     * @param replicas     replicas to push along, null to let primary copy them
+     * @param fileName     file name
+     * @param chunkID      chunk ID for this file
+     * @return task returning size written, or error code
+     */
+    Callable<Integer> chunkWrite(final boolean append, final byte[] data, final int fileServerID,
+                                         final List<Integer> replicas, final String fileName, final int chunkID) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                if (replicas != null) {
+                    return pushAndCommit(append, data, fileServerID, replicas, fileName, chunkID);
+                }
+                if (append) {
+                    return appendChunkData(data, fileServerID, fileName, chunkID);
+                }
+                return writeChunkData(data, fileServerID, fileName, chunkID);
+            }
+        };
+    }
+
+    /**
+     * Pipelined write of one chunk. The data is pushed once to primary, which forwards it to
+     * replica 2, which forwards it to replica 3, so it crosses the network once per hop instead of
+     * being read back and sent again by primary. A small commit to primary then writes it on all
+     * three, in the order primary decides
+     *
+     * @param append       append to the chunk instead of writing it
+     * @param data         for the chunk
+     * @param fileServerID primary
+     * @param replicas     replica 2 and replica 3
+     * @param fileName     file name
+     * @param chunkID      chunk ID for this file
+     * @return size written if success, otherwise error code
+     */
+    private int pushAndCommit(boolean append, byte[] data, int fileServerID, List<Integer> replicas,
+                              String fileName, int chunkID) {
+        FileServer fileServer = allFileServerList.get(fileServerID);
+        if (fileServer == null) {
+            return -1;
+        }
+
+        int pushID = pushSeries.incrementAndGet();
+        try {
+            RequestEnvelop push = new RequestEnvelop("push", fileName);
+            push.chunkID = chunkID;
+            push.addParam(pushID);
+            for (Integer replica : replicas) {
+                push.addParam(replica);
+            }
+            push.setData(data);
+
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, push);
+            if (response.error < 0) {
+                return response.error;
+            }
+
+            RequestEnvelop commit = new RequestEnvelop("commit", fileName);
+            commit.chunkID = chunkID;
+            commit.addParam(pushID);
+            commit.addParam(append ? 1 : 0);
+            // primary decides where the append goes
+            commit.addParam(-1);
+            for (Integer replica : replicas) {
+                commit.addParam(replica);
+            }
+
+            response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, commit);
+            if (response.params == null || response.params.size() == 0) {
+                return response.error != 0 ? response.error : -1;
+            }
+            return response.params.get(0) == data.length ? data.length : -1;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Run the chunk writes of one request at the same time, at most maxInFlightChunks of them
+     * in flight. Every chunk is on its own, so each file server copies its replicas while the
+     * others do the same, and the request takes as long as its slowest chunk
+     *
+     * @param writes one task per chunk
+     * @return result of every task in the order given, -1 for a task that did not finish
+     */
+    private List<Integer> runChunkWrites(List<Callable<Integer>> writes) {
+        List<Integer> results = new ArrayList<>(writes.size());
+
+        // one chunk is written right here, no point in handing it over
+        if (writes.size() == 1) {
+            try {
+                results.add(writes.get(0).call());
+            } catch (Exception e) {
+                e.printStackTrace();
+                results.add(-1);
+            }
+            return results;
+        }
+
+        List<Future<Integer>> pending = new ArrayList<>(writes.size());
+        for (Callable<Integer> write : writes) {
+            pending.add(chunkExecutor.submit(write));
+        }
+
+        // wait for all of them, a failed request is still ACKed only after nothing is in flight
+        for (Future<Integer> future : pending) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                results.add(-1);
+            }
+        }
+        return results;
     }
 
     /**
@@ -373,7 +850,7 @@ public class FileClient {
      * @param chunkID      chunk ID in the file server in the chunk
      * @return actual size appended if success, otherwise -1
      */
-    private int appendChunkData(char[] data, int fileServerID, String fileName, int chunkID) {
+    private int appendChunkData(byte[] data, int fileServerID, String fileName, int chunkID) {
         FileServer fileServer = allFileServerList.get(fileServerID);
         if (fileServer == null) {
             return -1;
@@ -383,29 +860,23 @@ public class FileClient {
         }
 
         try {
-            Socket fileSock = new Socket(fileServer.fileServerAddress, fileServer.requestFilePort);
             RequestEnvelop request = new RequestEnvelop("a", fileName);
-            request.addParam(Integer.toString(chunkID));
+            request.addParam(chunkID);
             request.setData(data);
 
-            ObjectOutputStream output = new ObjectOutputStream(fileSock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
-
-            ObjectInputStream input = new ObjectInputStream(fileSock.getInputStream());
-            ResponseEnvelop response = (ResponseEnvelop) input.readObject();
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, request);
 
             if (response.params == null || response.params.size() < 1) {
                 return response.error != 0 ? response.error : -1;
             }
 
-            if (Integer.valueOf(response.params.get(0)) == data.length) {
+            if (response.params.get(0) == data.length) {
                 return data.length;
             } else {
                 return response.error != 0 ? response.error : -1;
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
@@ -416,48 +887,36 @@ public class FileClient {
     /**
      * Append data to file
      *
-     * @param data           to append
+     * @param buffer         to append
      * @param fileName       file name
      * @param firstOffset    offset in first chunk, other chunk will be entirely new
      * @param chunks         chunk list
      * @param chunkLocations file server list
+     * @param chunkReplicas  two replicas per chunk, null if meta server did not send them
      * @return size written if success, otherwise -1
      */
-    private int appendData(String data, String fileName, int firstOffset, List<Integer> chunks, List<Integer> chunkLocations) {
+    private int appendData(byte[] buffer, String fileName, int firstOffset, List<Integer> chunks, List<Integer> chunkLocations,
+                           List<Integer> chunkReplicas) {
         if (chunks.size() == 0 || firstOffset < 0 || firstOffset >= FileChunk.FIXED_SIZE) {
             return 0;
         }
 
-        char[] buffer = data.toCharArray();
-        int bytesWritten = 0;
-
         Iterator<Integer> chunkItor = chunks.iterator();
         Iterator<Integer> locationItor = chunkLocations.iterator();
+        Iterator<Integer> replicaItor = chunkReplicas == null ? null : chunkReplicas.iterator();
+        List<Callable<Integer>> writes = new ArrayList<>(chunks.size());
 
         // first chunk
         int chunkID = chunkItor.next();
         int location = locationItor.next();
 
-        int ret;
-        char[] dataToWrite = Arrays.copyOfRange(buffer, 0, Math.min(FileChunk.FIXED_SIZE - firstOffset, data.length()));
-
-        if (firstOffset != 0) {
-            // append
-            ret = appendChunkData(dataToWrite, location, fileName, chunkID);
-        } else {
-            // write
-            ret = writeChunkData(dataToWrite, location, fileName, chunkID);
-        }
+        byte[] dataToWrite = Arrays.copyOfRange(buffer, 0, Math.min(FileChunk.FIXED_SIZE - firstOffset, buffer.length));
 
-        if (ret < 0) {
-            sendACKTOMeta(fileName, new ArrayList<>(chunks), false);
-            System.out.println("Append error: " + ret);
-            return -1;
-        }
-        bytesWritten += ret;
+        // append if the chunk has data already, otherwise write
+        writes.add(chunkWrite(firstOffset != 0, dataToWrite, location, nextReplicas(replicaItor), fileName, chunkID));
 
         // other chunks
-        int start = bytesWritten;
+        int start = dataToWrite.length;
         int end;
         while (chunkItor.hasNext()) {
             chunkID = chunkItor.next();
@@ -473,11 +932,18 @@ public class FileClient {
             dataToWrite = Arrays.copyOfRange(buffer, start, end);
             start += FileChunk.FIXED_SIZE;
 
-            ret = writeChunkData(dataToWrite, location, fileName, chunkID);
+            writes.add(chunkWrite(false, dataToWrite, location, nextReplicas(replicaItor), fileName, chunkID));
+        }
+
+        List<Integer> results = runChunkWrites(writes);
+
+        int bytesWritten = 0;
+        for (int i = 0; i < results.size(); i++) {
+            int ret = results.get(i);
             if (ret < 0) {
                 sendACKTOMeta(fileName, new ArrayList<>(chunks), false);
                 System.out.println("Append error: " + ret);
-                return ret;
+                return i == 0 ? -1 : ret;
             }
             bytesWritten += ret;
         }
@@ -486,43 +952,18 @@ public class FileClient {
     }
 
     /**
-     * Send request to meta server
+     * Send request to meta server and receive the response for it
      *
-     * @param request    already initialized and set
-     * @param clientSock established socket
-     * @return 0 if success, -1 if fail
+     * @param request already initialized and set
+     * @return response body, null if meta server is not available
      */
-    private int sendRequestToMeta(RequestEnvelop request, Socket clientSock) {
+    private ResponseEnvelop requestMeta(RequestEnvelop request) {
         try {
-            ObjectOutputStream output = new ObjectOutputStream(clientSock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
-
+            return connectionPool.exchange(metaServer.metaServerAddress, metaServer.clientPort, request);
         } catch (IOException e) {
             e.printStackTrace();
-            return -1;
-        }
-
-        return 0;
-    }
-
-    /**
-     * Receive response for latest request
-     *
-     * @param clientSock established socket
-     * @return response body
-     */
-    private ResponseEnvelop receiveResponseFromMeta(Socket clientSock) {
-        ResponseEnvelop response = null;
-        try {
-            ObjectInputStream input = new ObjectInputStream(clientSock.getInputStream());
-
-            response = (ResponseEnvelop) input.readObject();
-
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+            return null;
         }
-        return response;
     }
 
     /**
@@ -533,26 +974,17 @@ public class FileClient {
      * @param success   whether or not succeed to write operate this chunk
      * @return true if ACK send to meta and meta response commit. Otherwise false
      */
-    private boolean sendACKTOMeta(String fileName, ArrayList<Integer> chunkList, boolean success) {
+    boolean sendACKTOMeta(String fileName, ArrayList<Integer> chunkList, boolean success) {
 
         try {
-            Socket toMetaSock = new Socket(metaServer.metaServerAddress, metaServer.ackPort);
-
             ACKEnvelop ack = ACKEnvelop.clientAck(fileName, chunkList, success);
-            ObjectOutputStream output = new ObjectOutputStream(toMetaSock.getOutputStream());
-            output.writeObject(ack);
-            output.flush();
-
-            ObjectInputStream input = new ObjectInputStream(toMetaSock.getInputStream());
-            ACKEnvelop ackFromMeta = (ACKEnvelop) input.readObject();
-
-            input.close();
+            ACKEnvelop ackFromMeta = connectionPool.exchangeAck(metaServer.metaServerAddress, metaServer.ackPort, ack);
 
             if (ackFromMeta.type != ACKEnvelop.META_SERVER_ACK || ackFromMeta.ackNo != ack.ackNo) {
                 return false;
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
@@ -584,6 +1016,10 @@ public class FileClient {
             // config for meta server
             Node metaServerNode = doc.getElementsByTagName("metaServer").item(0);
             metaServer = new MetaServer(metaServerNode);
+            connectionPool = ConnectionPool.fromConfig(doc.getElementsByTagName("connectionPool").item(0));
+            connectionPool.compressor = FrameCompressor.fromConfig(doc.getElementsByTagName("compression").item(0));
+            locationCache = LocationCache.fromConfig(doc.getElementsByTagName("locationCache").item(0));
+            parseXMLToConfigClient(doc.getElementsByTagName("fileClient").item(0));
             //parseXMLToConfigMetaServer(metaServerNode);
             // config for file server virtual machine
             parseXMLToConfigFileServers(doc);
@@ -593,6 +1029,49 @@ public class FileClient {
         }
     }
 
+    /**
+     * Retrieve settings of this client
+     *
+     * @param clientNode optional element of XML config, may be null
+     */
+    private void parseXMLToConfigClient(Node clientNode) {
+        if (clientNode == null) {
+            return;
+        }
+
+        NodeList clientConfig = clientNode.getChildNodes();
+        for (int j = 0; j < clientConfig.getLength(); j++) {
+            Node oneConfig = clientConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("maxInFlightChunks")) {
+                maxInFlightChunks = Integer.parseInt(text);
+            }
+            if (nodeName.equals("hedgedReads")) {
+                hedgedReads = Boolean.parseBoolean(text);
+            }
+            if (nodeName.equals("hedgePercentile")) {
+                hedgePercentile = Integer.parseInt(text);
+            }
+            if (nodeName.equals("hedgeMinDelayMillis")) {
+                hedgeMinDelayMillis = Integer.parseInt(text);
+            }
+            if (nodeName.equals("hedgeBudgetPercent")) {
+                hedgeBudgetPercent = Integer.parseInt(text);
+            }
+            if (nodeName.equals("prefetchChunks")) {
+                prefetchChunks = Integer.parseInt(text);
+            }
+            if (nodeName.equals("writeBehindChunks")) {
+                writeBehindChunks = Integer.parseInt(text);
+            }
+        }
+    }
+
     /**
      * Retrieve information about all file servers
      *
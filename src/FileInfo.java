@@ -1,17 +1,28 @@
 import java.io.File;
-import java.io.FileReader;
-import java.io.Serializable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-public class FileInfo implements Serializable, Iterable<Map.Entry<String, List<FileChunk>>> {
+public class FileInfo implements Iterable<Map.Entry<String, List<FileChunk>>> {
+    // present in a directory whose chunk files hold their data only, without zero padding
+    public static final String UNPADDED_MARKER = ".unpadded";
+    // suffix of the file keeping the checksums of a chunk file
+    public static final String CHECKSUM_SUFFIX = ".crc";
 
     String fileDir;
 
     // file chunks are in increasing order by their id
     final Map<String, List<FileChunk>> fileChunks = new ConcurrentHashMap<>();
 
+    // bumped on every change of a chunk
+    private final AtomicLong changeSeq = new AtomicLong();
+    // changes not yet acknowledged by meta server, file name -> chunk ID -> seq of latest change
+    private final Map<String, Map<Integer, Long>> changes = new HashMap<>();
+
     public FileInfo() {
     }
 
@@ -52,6 +63,11 @@ public class FileInfo implements Serializable, Iterable<Map.Entry<String, List<F
             return;
         }
 
+        // chunks written before padding was dropped are trimmed once
+        File marker = new File(folder, UNPADDED_MARKER);
+        boolean padded = !marker.exists();
+
+        List<FileChunk> chunks = new ArrayList<>();
         // for each file entry under the directory
         for (File file : fileList) {
             try {
@@ -61,7 +77,8 @@ public class FileInfo implements Serializable, Iterable<Map.Entry<String, List<F
 
                 String fileName = file.getName();
                 // ignore invalid one
-                if (fileName.length() <= (8 + 1)) {
+                if (fileName.length() <= (8 + 1) || fileName.equals(UNPADDED_MARKER)
+                        || fileName.endsWith(CHECKSUM_SUFFIX)) {
                     continue;
                 }
 
@@ -69,24 +86,44 @@ public class FileInfo implements Serializable, Iterable<Map.Entry<String, List<F
                 String realName = fileName.substring(0, lastDash);
                 String chunkID = fileName.substring(lastDash + 1);
 
-                // read data in file
-                FileReader reader = new FileReader(this.fileDir + "/" + fileName);
-                char[] buffer = new char[FileChunk.FIXED_SIZE];
-                reader.read(buffer, 0, FileChunk.FIXED_SIZE);
-                int actualLength = Helper.charArrayLength(buffer);
-
-                FileChunk chunk = new FileChunk(realName, Integer.valueOf(chunkID), actualLength);
-                // add chunk control block
-                List<FileChunk> oneFile = fileChunks.get(realName);
-                if (oneFile == null) {
-                    oneFile = Collections.synchronizedList(new ArrayList<FileChunk>());
-                    fileChunks.put(realName, oneFile);
+                // chunk file holds exactly the data of the chunk
+                int actualLength = (int) file.length();
+                if (padded) {
+                    actualLength = trimPadding(file);
                 }
-                oneFile.add(chunk);
+
+                chunks.add(new FileChunk(realName, Integer.valueOf(chunkID), actualLength));
             } catch (java.io.IOException e) {
                 e.printStackTrace();
             }
         }
+        addRecovered(chunks);
+
+        if (padded) {
+            try {
+                if (!marker.createNewFile()) {
+                    System.out.println("Marker exists " + marker);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Add chunk control blocks found on disk
+     *
+     * @param chunks chunks in any order
+     */
+    public void addRecovered(Collection<FileChunk> chunks) {
+        for (FileChunk chunk : chunks) {
+            List<FileChunk> oneFile = fileChunks.get(chunk.realFileName);
+            if (oneFile == null) {
+                oneFile = Collections.synchronizedList(new ArrayList<FileChunk>());
+                fileChunks.put(chunk.realFileName, oneFile);
+            }
+            oneFile.add(chunk);
+        }
 
         for (Map.Entry<String, List<FileChunk>> pair : fileChunks.entrySet()) {
             // chunks are ordered by id
@@ -94,6 +131,137 @@ public class FileInfo implements Serializable, Iterable<Map.Entry<String, List<F
         }
     }
 
+    /**
+     * Cut the zero padding of a chunk file written when chunks were padded to FIXED_SIZE
+     *
+     * @param file chunk file
+     * @return length of data
+     * @throws IOException if file can not be read or truncated
+     */
+    private static int trimPadding(File file) throws IOException {
+        byte[] buffer = new byte[FileChunk.FIXED_SIZE];
+        try (FileInputStream input = new FileInputStream(file)) {
+            int size = 0;
+            int n;
+            while (size < buffer.length && (n = input.read(buffer, size, buffer.length - size)) > 0) {
+                size += n;
+            }
+        }
+        int actualLength = Helper.byteArrayLength(buffer);
+
+        if (actualLength < file.length()) {
+            try (RandomAccessFile chunkFile = new RandomAccessFile(file, "rw")) {
+                chunkFile.setLength(actualLength);
+            }
+        }
+        return actualLength;
+    }
+
+    /**
+     * Record a chunk added, changed or removed, so the next delta report carries it
+     *
+     * @param fileName real file
+     * @param chunkID  ID
+     */
+    public void markChanged(String fileName, int chunkID) {
+        synchronized (changes) {
+            Map<Integer, Long> chunks = changes.get(fileName);
+            if (chunks == null) {
+                chunks = new HashMap<>();
+                changes.put(fileName, chunks);
+            }
+            chunks.put(chunkID, changeSeq.incrementAndGet());
+        }
+    }
+
+    /**
+     * Build the report to send with a heartbeat
+     *
+     * @param full    whether to report every chunk or only the changed ones
+     * @param baseSeq last report acknowledged by meta server
+     * @param seq     of this report
+     * @return report, pass to acknowledged once meta server applied it
+     */
+    public BlockReport report(boolean full, long baseSeq, long seq) {
+        BlockReport report = new BlockReport(full, baseSeq, seq);
+
+        // take changes before chunk state, so the state sent is at least as new as the changes covered
+        synchronized (changes) {
+            for (Map.Entry<String, Map<Integer, Long>> pair : changes.entrySet()) {
+                report.covered.put(pair.getKey(), new HashMap<>(pair.getValue()));
+            }
+        }
+
+        if (full) {
+            // encoded right away, chunk lists are copied then
+            report.fileInfo = this;
+            return report;
+        }
+
+        report.fileInfo = new FileInfo(fileDir);
+        for (Map.Entry<String, Map<Integer, Long>> pair : report.covered.entrySet()) {
+            String fileName = pair.getKey();
+            for (Integer chunkID : pair.getValue().keySet()) {
+                FileChunk chunk = copyOfChunk(fileName, chunkID);
+                if (chunk == null) {
+                    report.addRemoved(fileName, chunkID);
+                } else {
+                    report.addChanged(chunk);
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Forget the changes carried by a report meta server applied. A chunk changed again
+     * after the report was built stays for the next one
+     *
+     * @param report acknowledged
+     */
+    public void acknowledged(BlockReport report) {
+        synchronized (changes) {
+            for (Map.Entry<String, Map<Integer, Long>> pair : report.covered.entrySet()) {
+                Map<Integer, Long> chunks = changes.get(pair.getKey());
+                if (chunks == null) {
+                    continue;
+                }
+
+                for (Map.Entry<Integer, Long> change : pair.getValue().entrySet()) {
+                    if (change.getValue().equals(chunks.get(change.getKey()))) {
+                        chunks.remove(change.getKey());
+                    }
+                }
+                if (chunks.isEmpty()) {
+                    changes.remove(pair.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param fileName real file
+     * @param chunkID  ID
+     * @return copy of the chunk control block, null if chunk is not held
+     */
+    FileChunk copyOfChunk(String fileName, int chunkID) {
+        List<FileChunk> chunks = fileChunks.get(fileName);
+        if (chunks == null) {
+            return null;
+        }
+
+        synchronized (chunks) {
+            for (FileChunk chunk : chunks) {
+                if (chunk.chunkID == chunkID) {
+                    FileChunk copy = new FileChunk(fileName, chunkID, chunk.actualLength);
+                    copy.version = chunk.version;
+                    return copy;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Get the total number of chunks maintained on this server
      *
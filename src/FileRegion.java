@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Range of an open file to be sent as payload of a response. It is read on the thread that
+ * answers the request, so a cold read from disk never stalls the thread writing sockets
+ */
+public class FileRegion {
+    final FileChannel channel;
+    long position;
+    long remaining;
+
+    /**
+     * @param channel  open file, closed once the region is sent or dropped
+     * @param position first byte to send
+     * @param count    bytes to send
+     */
+    public FileRegion(FileChannel channel, long position, long count) {
+        this.channel = channel;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Read the whole region and close the file. A file got shorter since the region was opened
+     * is zero filled, so the frame keeps the length announced
+     *
+     * @return buffer ready to be written
+     * @throws IOException if file can not be read
+     */
+    public ByteBuffer load() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) remaining);
+        try {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } finally {
+            close();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
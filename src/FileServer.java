@@ -12,12 +12,9 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.*;
 import java.io.*;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 
 
 public class FileServer {
@@ -35,19 +32,105 @@ public class FileServer {
 
     final FileInfo fileInfo = new FileInfo();
     String storageDir;
+    // keeps chunk data under storageDir, built in parseXML
+    ChunkStore chunkStore;
+    // durable write mode, writes acknowledged once synced in groups, off by default
+    GroupCommit groupCommit = new GroupCommit();
 
     // socket to send heartbeat
     Socket heartbeatSock;
-    // socket to listen to request
-    ServerSocket requestSock;
-    // socket to hand command from meta
-    ServerSocket commandSock;
+    // meta server answers every block report, a few missed beats mean the connection is gone
+    static final int HEARTBEAT_ACK_TIMEOUT_MILLIS = 15000;
+    // deltas sent between two full block reports
+    int fullReportEvery = 60;
+    // block reports are sent at most this often, liveness is carried by pings
+    int reportIntervalMillis = 5000;
+    int pingIntervalMillis = 1000;
+    // serves request port and command port
+    RequestServer requestServer;
+
+    // compresses replica pushes and read responses on connections which agreed
+    FrameCompressor compressor;
+    // hot chunks kept in memory, replaced by configured one in parseXML
+    ChunkCache chunkCache = new ChunkCache();
 
     HashMap<Integer, FileServer> allFileServerList;
 
+    // keep-alive connections to meta server and other file servers
+    ConnectionPool connectionPool;
+
     // replicas location sent from meta server
     final Map<String, Map<Integer, List<Integer>>> replicaMap = new ConcurrentHashMap<>();
 
+    // data pushed by clients and not committed yet, by file name, chunk ID and push ID
+    final Map<String, PendingPush> pendingPushes = new ConcurrentHashMap<>();
+    // pushed data never committed is dropped after this
+    static final long PUSH_TIMEOUT_MILLIS = 60000;
+    // pushes forwarded down the chain run here, the request worker answers none of them
+    final EndpointExecutor pushExecutor = new EndpointExecutor("fileServer-push",
+            EndpointExecutor.DEFAULT_MAX_CONCURRENT, EndpointExecutor.DEFAULT_IDLE_THREAD_MILLIS);
+
+    // copies, primary included, stored before a write is acknowledged
+    int writeQuorum = 2;
+    // copies to replicas run here, a write waits only for the quorum of them
+    final EndpointExecutor replicationExecutor = new EndpointExecutor("fileServer-replication",
+            EndpointExecutor.DEFAULT_MAX_CONCURRENT, EndpointExecutor.DEFAULT_IDLE_THREAD_MILLIS);
+    // replicas which missed a write, copied again in background
+    final BlockingQueue<RepairTask> repairQueue = new LinkedBlockingQueue<>();
+    // keys of chunks queued for repair, so that one chunk is queued once per replica
+    final Set<String> repairing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    static final int MAX_REPAIR_ATTEMPTS = 5;
+    static final long REPAIR_BACKOFF_MILLIS = 2000;
+
+    // copies which do not match their checksums, not served until a good copy replaces them
+    final Set<String> corruptChunks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // scrubber reads all chunks once per pass at most this fast, 0 disables it
+    long scrubBytesPerSecond = 1024 * 1024;
+    long scrubPassIntervalMillis = 600000;
+
+    /**
+     * Copies one chunk to one replica
+     */
+    interface ReplicaCopy {
+        /**
+         * @param replica file server ID
+         * @return negative if fails
+         */
+        int copy(int replica);
+    }
+
+    /**
+     * Replica which missed a write of a chunk
+     */
+    static class RepairTask {
+        final String fileName;
+        final int chunkID;
+        final int replica;
+        int attempts = 0;
+
+        RepairTask(String fileName, int chunkID, int replica) {
+            this.fileName = fileName;
+            this.chunkID = chunkID;
+            this.replica = replica;
+        }
+
+        String key() {
+            return fileName + "/" + chunkID + "/" + replica;
+        }
+    }
+
+    /**
+     * Chunk data received in the push phase of a pipelined write, kept in memory until commit
+     */
+    static class PendingPush {
+        final byte[] data;
+        final long receivedAt = System.currentTimeMillis();
+
+        PendingPush(byte[] data) {
+            this.data = data;
+        }
+    }
+
     //public static final int CHUNK_LENGTH = 8192;
 
     public FileServer() {
@@ -86,15 +169,138 @@ public class FileServer {
             // config for meta server
             Node metaServerNode = doc.getElementsByTagName("metaServer").item(0);
             parseXMLToConfigMetaServer(metaServerNode);
+            connectionPool = ConnectionPool.fromConfig(doc.getElementsByTagName("connectionPool").item(0));
+            requestServer = RequestServer.fromConfig("fileServer", doc.getElementsByTagName("requestServer").item(0));
+            compressor = FrameCompressor.fromConfig(doc.getElementsByTagName("compression").item(0));
+            chunkCache = ChunkCache.fromConfig(doc.getElementsByTagName("chunkCache").item(0));
+            groupCommit = GroupCommit.fromConfig(doc.getElementsByTagName("groupCommit").item(0));
+            connectionPool.compressor = compressor;
+            requestServer.compressor = compressor;
+            parseXMLToConfigHeartbeat(doc.getElementsByTagName("heartbeat").item(0));
+            parseXMLToConfigReplication(doc.getElementsByTagName("replication").item(0));
+            parseXMLToConfigScrubber(doc.getElementsByTagName("scrubber").item(0));
 
             parseXMLToConfigFileServer(thisFileServerNode);
             parseXMLToConfigFileServers(doc);
+            chunkStore = parseXMLToConfigChunkStore(doc.getElementsByTagName("chunkStore").item(0));
 
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void parseXMLToConfigHeartbeat(Node heartbeatNode) {
+        if (heartbeatNode == null) {
+            return;
+        }
+
+        NodeList heartbeatConfig = heartbeatNode.getChildNodes();
+        for (int j = 0; j < heartbeatConfig.getLength(); j++) {
+            Node oneConfig = heartbeatConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("fullReportEvery")) {
+                fullReportEvery = Integer.parseInt(text);
+            }
+            if (nodeName.equals("reportIntervalMillis")) {
+                reportIntervalMillis = Integer.parseInt(text);
+            }
+            if (nodeName.equals("pingIntervalMillis")) {
+                pingIntervalMillis = Integer.parseInt(text);
+            }
+        }
+    }
+
+    private void parseXMLToConfigReplication(Node replicationNode) {
+        if (replicationNode == null) {
+            return;
+        }
+
+        NodeList replicationConfig = replicationNode.getChildNodes();
+        for (int j = 0; j < replicationConfig.getLength(); j++) {
+            Node oneConfig = replicationConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            if (oneConfig.getNodeName().equals("writeQuorum")) {
+                writeQuorum = Integer.parseInt(oneConfig.getTextContent().trim());
+            }
+        }
+    }
+
+    private void parseXMLToConfigScrubber(Node scrubberNode) {
+        if (scrubberNode == null) {
+            return;
+        }
+
+        NodeList scrubberConfig = scrubberNode.getChildNodes();
+        for (int j = 0; j < scrubberConfig.getLength(); j++) {
+            Node oneConfig = scrubberConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("bytesPerSecond")) {
+                scrubBytesPerSecond = Long.parseLong(text);
+            }
+            if (nodeName.equals("passIntervalMillis")) {
+                scrubPassIntervalMillis = Long.parseLong(text);
+            }
+        }
+    }
+
+    /**
+     * Build chunk store from optional &lt;chunkStore&gt; element, one file per chunk by default
+     *
+     * @param storeNode element, may be null
+     * @return store in storageDir
+     */
+    private ChunkStore parseXMLToConfigChunkStore(Node storeNode) {
+        if (storeNode == null) {
+            return new FileChunkStore(storageDir);
+        }
+
+        String type = "file";
+        SegmentChunkStore segmentStore = new SegmentChunkStore(storageDir);
+        NodeList storeConfig = storeNode.getChildNodes();
+        for (int j = 0; j < storeConfig.getLength(); j++) {
+            Node oneConfig = storeConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("type")) {
+                type = text;
+            }
+            if (nodeName.equals("segmentSizeMB")) {
+                segmentStore.segmentSizeMB = Integer.parseInt(text);
+            }
+            if (nodeName.equals("compactLivePercent")) {
+                segmentStore.compactLivePercent = Integer.parseInt(text);
+            }
+            if (nodeName.equals("compactIntervalMillis")) {
+                segmentStore.compactIntervalMillis = Integer.parseInt(text);
+            }
+        }
+
+        if (type.equals("segment")) {
+            return segmentStore;
+        }
+        if (!type.equals("file")) {
+            System.out.println("Unknown chunk store " + type + ", one file per chunk");
+        }
+        return new FileChunkStore(storageDir);
+    }
+
     private static Node getFileServerNodeWithHostname(Document doc, XPath xPath, String hostname) {
         NodeList nodes = null;
         try {
@@ -172,6 +378,9 @@ public class FileServer {
             if (nodeName.equals("replicaPort")) {
                 metaServer.replicaPort = Integer.parseInt(text);
             }
+            if (nodeName.equals("livenessPort")) {
+                metaServer.livenessPort = Integer.parseInt(text);
+            }
         }
     }
 
@@ -252,18 +461,34 @@ public class FileServer {
         while (true) {
             try {
                 heartbeatSock = new Socket(metaServer.metaServerAddress, metaServer.receiveHeartbeatPort);
+                heartbeatSock.setSoTimeout(HEARTBEAT_ACK_TIMEOUT_MILLIS);
 
                 //##############################################################
                 Thread thread = new Thread(new Runnable() {
                     @Override
                     public void run() {
                         System.out.println("Enter heartbeat send loop");
-                        ObjectOutputStream output;
+                        // meta server knows nothing of this connection yet, start with a full report
+                        boolean full = true;
+                        long reportSeq = 0;
+                        long ackedSeq = 0;
+                        int deltas = 0;
                         while (true) {
                             try {
-                                output = new ObjectOutputStream(heartbeatSock.getOutputStream());
-                                output.writeObject(fileInfo);
-                                output.flush();
+                                BlockReport report = fileInfo.report(full, ackedSeq, ++reportSeq);
+                                WireProtocol.writeBlockReport(heartbeatSock.getOutputStream(), report);
+                                long applied = WireProtocol.readReportAck(heartbeatSock.getInputStream());
+
+                                if (applied == report.seq) {
+                                    fileInfo.acknowledged(report);
+                                    ackedSeq = applied;
+                                    deltas = full ? 0 : deltas + 1;
+                                    // periodic full report resyncs anything meta server got wrong
+                                    full = deltas >= fullReportEvery;
+                                } else {
+                                    // meta server lost track, e.g. it declared this server failed
+                                    full = true;
+                                }
 
                             } catch (IOException e) {
                                 System.out.println(heartbeatSock.getRemoteSocketAddress().toString());
@@ -271,7 +496,8 @@ public class FileServer {
                                 break;
                             }
                             try {
-                                Thread.sleep(5000);
+                                // reports are rate limited, liveness does not depend on them
+                                Thread.sleep(reportIntervalMillis);
                             } catch (InterruptedException e) {
                                 e.printStackTrace();
                             }
@@ -306,241 +532,468 @@ public class FileServer {
     }
 
     /**
-     * Create a new thread to keep sending heartbeat
+     * Create a new thread to keep sending liveness pings to meta server. A ping is a datagram of
+     * fixed size, so it is on time however many chunks this server holds
      */
-    private void prepareToSendHeartbeat() {
-        Thread threadHeartbeat = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                heartbeatToMetaServer();
-            }
-        });
-
-        threadHeartbeat.setDaemon(true);
-        threadHeartbeat.start();
-    }
-
-    /**
-     * Create a thread to listen to request from clients or meta server
-     */
-    private void prepareToReceiveRequest() {
+    private void prepareToSendPing() {
+        final DatagramSocket pingSock;
         try {
-            requestSock = new ServerSocket(requestFilePort);
-        } catch (IOException e) {
+            pingSock = new DatagramSocket();
+        } catch (SocketException e) {
             e.printStackTrace();
+            return;
         }
 
-        System.out.println("Request listen port: " + requestSock.getLocalPort());
-
-        Thread requestHandleRequest = new Thread(new Runnable() {
+        Thread threadPing = new Thread(new Runnable() {
             @Override
             public void run() {
-                // note that meta server can also be requester
+                long seq = 0;
                 while (true) {
+                    byte[] ping = WireProtocol.pingPacket(id, ++seq);
                     try {
-                        Socket clientSock = requestSock.accept();
-                        System.out.println("Receive request from: " + clientSock.getInetAddress().toString());
-
-                        ResponseRequestEntity responseRequestEntity = new ResponseRequestEntity(clientSock);
-                        Thread threadResponse = new Thread(responseRequestEntity);
-                        threadResponse.setDaemon(true);
-                        threadResponse.run();
+                        pingSock.send(new DatagramPacket(ping, ping.length,
+                                metaServer.metaServerAddress, metaServer.livenessPort()));
                     } catch (IOException e) {
+                        // a lost ping is fine, the next one follows
+                        System.out.println(e.getMessage());
+                    }
+
+                    try {
+                        Thread.sleep(pingIntervalMillis);
+                    } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
                 }
             }
         });
 
-        requestHandleRequest.setDaemon(true);
-        requestHandleRequest.start();
+        threadPing.setDaemon(true);
+        threadPing.start();
     }
 
-    private void prepareToReceiveCommandFromMeta() {
-        try {
-            commandSock = new ServerSocket(this.commandPort);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        System.out.println("Command listen port: " + commandSock.getLocalPort());
-
-        Thread commandHandleThread = new Thread(new Runnable() {
+    /**
+     * Create a new thread to keep sending heartbeat
+     */
+    private void prepareToSendHeartbeat() {
+        Thread threadHeartbeat = new Thread(new Runnable() {
             @Override
             public void run() {
-                while (true) {
-                    try {
-                        Socket metaSock = commandSock.accept();
-                        ObjectInputStream input = new ObjectInputStream(metaSock.getInputStream());
-                        RequestEnvelop request = (RequestEnvelop) input.readObject();
+                heartbeatToMetaServer();
+            }
+        });
 
-                        ResponseEnvelop response = new ResponseEnvelop(request);
+        threadHeartbeat.setDaemon(true);
+        threadHeartbeat.start();
+    }
 
-                        String fileName = request.fileName;
-                        int chunkID = request.chunkID;
-                        int target;
+    /**
+     * Listen to requests from clients, meta server and other file servers, and to commands from meta server
+     */
+    private void prepareToReceiveRequest() {
+        try {
+            // note that meta server can also be requester
+            int requestPort = requestServer.listen(requestFilePort, new RequestServer.Handler() {
+                @Override
+                public ResponseEnvelop respond(RequestEnvelop request) {
+                    return respondRequest(request);
+                }
+            });
+            System.out.println("Request listen port: " + requestPort);
 
-                        if (request.params != null && request.params.size() > 0) {
-                            target = Integer.parseInt(request.params.get(0));
-                            int ret = migrateChunkReplica(fileName, chunkID, target);
-                            if (ret < 0) {
-                                response.setError(FileClient.CHUNK_NOT_AVAILABLE);
-                            }
-                        } else {
-                            response.setError(FileClient.INVALID_COMMAND);
-                        }
+            int listenCommandPort = requestServer.listen(commandPort, new RequestServer.Handler() {
+                @Override
+                public ResponseEnvelop respond(RequestEnvelop request) {
+                    return respondCommand(request);
+                }
+            });
+            System.out.println("Command listen port: " + listenCommandPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-                        ObjectOutputStream output = new ObjectOutputStream(metaSock.getOutputStream());
-                        output.writeObject(response);
-                        output.flush();
-                        output.close();
+        requestServer.start();
+    }
 
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                        System.exit(-1);
-                    }
-                }
+    /**
+     * Execute one command from meta server
+     *
+     * @param request command
+     * @return response to send back
+     */
+    private ResponseEnvelop respondCommand(RequestEnvelop request) {
+        ResponseEnvelop response = new ResponseEnvelop(request);
+
+        String fileName = request.fileName;
+        int chunkID = request.chunkID;
+        int target;
+
+        if (request.params != null && request.params.size() > 0) {
+            target = request.params.get(0);
+            int ret = migrateChunkReplica(fileName, chunkID, target);
+            if (ret < 0) {
+                response.setError(FileClient.CHUNK_NOT_AVAILABLE);
             }
-        });
+        } else {
+            response.setError(FileClient.INVALID_COMMAND);
+        }
 
-        commandHandleThread.setDaemon(true);
-        commandHandleThread.start();
+        return response;
     }
 
     /**
-     * Thread to handle request
+     * Execute one request
+     *
+     * @param request from client, meta server or other file server
+     * @return response to send back
      */
-    class ResponseRequestEntity implements Runnable {
-
-        Socket clientSock;
+    private ResponseEnvelop respondRequest(RequestEnvelop request) {
+        ResponseEnvelop response = new ResponseEnvelop(request);
+
+        String cmd = request.cmd;
+        String fileName = request.fileName;
+        int chunkID;
+        int offset;
+        int length;
+        int ret;
 
-        public ResponseRequestEntity(Socket clientSock) {
-            this.clientSock = clientSock;
+        if (request.data != null) {
+            System.out.println(String.format("%s|%s|%d", cmd, fileName, request.data.length));
         }
 
-        @Override
-        public void run() {
-
-            try {
-                ObjectInputStream input = new ObjectInputStream(clientSock.getInputStream());
-                RequestEnvelop request = (RequestEnvelop) input.readObject();
+        if (cmd.length() > 1) {
+            if (cmd.equals("migrateReplica")) {
+                // meta tell this to copy chunk to two server
+                String fileMigrate = request.fileName;
+                int chunkMigrate = request.chunkID;
+                if (fileMigrate == null || request.params == null || request.params.size() == 0) {
+                    response.setError(FileClient.INVALID_COMMAND);
+                }
 
-                ResponseEnvelop response = new ResponseEnvelop(request);
+                int target = request.params.get(0);
 
-                String cmd = request.cmd;
-                String fileName = request.fileName;
-                int chunkID;
-                int offset;
-                int length;
-                int ret;
+                int result = migrateChunkReplica(fileMigrate, chunkMigrate, target);
+                if (result < 0) {
+                    System.out.println("Migrate fail: " + fileMigrate + " " + chunkMigrate);
+                    response.setError(-1);
+                }
+            } else if (cmd.equals("push")) {
+                // params: push ID, then the rest of the chain to forward to
+                if (request.params.size() == 0 || request.data == null) {
+                    response.setError(FileClient.INVALID_COMMAND);
+                } else {
+                    // answered once the rest of the chain has the data
+                    receivePush(request, response, RequestServer.defer());
+                }
+            } else if (cmd.equals("commit")) {
+                // params: push ID, append flag, offset appended at on primary or -1, replicas to commit on
+                if (request.params.size() < 3) {
+                    response.setError(FileClient.INVALID_COMMAND);
+                } else {
+                    ret = commitPush(request);
+                    if (ret < 0) {
+                        response.setError(ret);
+                    } else {
+                        response.addParam(ret);
+                    }
+                }
+            } else if (cmd.equals("replica")) {
+                // receive replica
+                if (request.params.size() != 0) {
+                    chunkID = request.params.get(0);
+                    int actualLength = request.data == null ? 0 : request.data.length;
+
+                    // checksums of the sender follow chunk ID, a copy damaged on the way replaces nothing
+                    int[] sums = new int[request.params.size() - 1];
+                    for (int i = 0; i < sums.length; i++) {
+                        sums[i] = request.params.get(i + 1);
+                    }
+                    byte[] received = request.data == null ? new byte[0] : request.data;
+                    if (sums.length > 0 && ChunkChecksums.firstBadBlock(received, sums) >= 0) {
+                        System.out.println("Replica checksum mismatch: " + fileName + " " + chunkID);
+                        response.setError(FileClient.CHUNK_NOT_AVAILABLE);
+                    } else {
+                        int size1 = write(fileName, chunkID, actualLength, request.data, false);
+
+                        response.addParam(size1);
+                    }
 
-                if (request.data != null) {
-                    System.out.println(String.format("%s|%s|%d", cmd, fileName, request.data.length));
+                } else {
+                    response.setError(FileClient.INVALID_COMMAND);
                 }
+            }
 
-                if (cmd.length() > 1) {
-                    if (cmd.equals("migrateReplica")) {
-                        // meta tell this to copy chunk to two server
-                        String fileMigrate = request.fileName;
-                        int chunkMigrate = request.chunkID;
-                        if (fileMigrate == null || request.params == null || request.params.size() == 0) {
-                            response.setError(FileClient.INVALID_COMMAND);
-                        }
+        } else {
 
-                        int target = Integer.parseInt(request.params.get(0));
+            switch (cmd.charAt(0)) {
+                case 'r':
+                    chunkID = request.params.get(0);
+                    offset = request.params.get(1);
+                    length = request.params.get(2);
+                    FileChunk chunk = getChunk(fileName, chunkID);
+                    if (chunk == null) {
+                        response.setError(FileClient.CHUNK_NOT_AVAILABLE);
+                        break;
+                    }
+                    if (offset < 0 || length < 0 || offset + length > FileChunk.FIXED_SIZE) {
+                        response.setError(FileClient.INVALID_COMMAND);
+                        break;
+                    }
+                    String chunkName = chunk.getChunkName();
+                    ChunkChecksums checksums = chunk.checksums;
+                    if (checksums == null || corruptChunks.contains(chunkName)) {
+                        // bad copy, client reads another one
+                        response.setError(FileClient.CHUNK_NOT_AVAILABLE);
+                        break;
+                    }
+                    // chunk file ends with its data, a read past it is cut short
+                    length = Math.max(0, Math.min(length, checksums.length - offset));
+
+                    // whole blocks are sent with their checksums, client verifies them and cuts
+                    // the range asked for. Params are start of data, then checksums
+                    int start = length == 0 ? offset : ChunkChecksums.alignDown(offset);
+                    int end = length == 0 ? offset : checksums.alignUp(offset + length);
+                    response.addParam(start);
+                    if (length > 0) {
+                        for (int sum : checksums.sums(start, end)) {
+                            response.addParam(sum);
+                        }
+                    }
 
-                        int result = migrateChunkReplica(fileMigrate, chunkMigrate, target);
-                        if (result < 0) {
-                            System.out.println("Migrate fail: " + fileMigrate + " " + chunkMigrate);
-                            response.setError(-1);
+                    byte[] cached = chunkCache.read(chunkName, start, end - start);
+                    if (cached != null && cached.length == end - start) {
+                        response.data = cached;
+                        break;
+                    }
+                    if (chunkCache.admit(chunkName)) {
+                        // missed before, worth a slot, filled only with verified data
+                        long ticket = chunkCache.ticket(chunkName);
+                        byte[] whole = readVerified(chunk, checksums, 0, checksums.length);
+                        if (whole == null) {
+                            chunkCache.cancel(chunkName);
+                            response.setError(FileClient.CHUNK_NOT_AVAILABLE);
+                            break;
                         }
-                    } else if (cmd.equals("replica")) {
-                        // receive replica
-                        if (request.params.size() != 0) {
-                            chunkID = Integer.valueOf(request.params.get(0));
-                            int actualLength = Helper.charArrayLength(request.data);
+                        chunkCache.put(chunkName, whole, ticket);
+                        response.data = Arrays.copyOfRange(whole, start, end);
+                        break;
+                    }
 
-                            int size1 = write(fileName, chunkID, actualLength, request.data, false);
+                    // payload goes from chunk file to socket without passing through heap
+                    FileRegion region = chunkStore.openRegion(chunk, start, end - start);
+                    if (region == null) {
+                        response.setError(FileClient.CHUNK_NOT_AVAILABLE);
+                        break;
+                    }
+                    response.region = region;
+                    break;
+                case 'w':
+                    if (request.params.size() == 0) {
+                        response.setError(FileClient.INVALID_COMMAND);
+                        break;
+                    }
+                    chunkID = request.params.get(0);
+                    int actualLength = request.data == null ? 0 : request.data.length;
 
-                            response.addParam(Integer.toString(size1));
+                    boolean needACK = request.params.size() == 1;
 
-                        } else {
-                            response.setError(FileClient.INVALID_COMMAND);
-                        }
-                    }
+                    int size1 = write(fileName, chunkID, actualLength, request.data, needACK);
 
-                } else {
+                    response.addParam(size1);
+                    break;
+                case 'a':
+                    chunkID = request.params.get(0);
 
-                    switch (cmd.charAt(0)) {
-                        case 'r':
-                            chunkID = Integer.valueOf(request.params.get(0));
-                            offset = Integer.valueOf(request.params.get(1));
-                            length = Integer.valueOf(request.params.get(2));
-                            FileChunk chunk = getChunk(fileName, chunkID);
-                            if (chunk == null) {
-                                response.setError(FileClient.CHUNK_NOT_AVAILABLE);
-                                break;
-                            }
-                            char[] data = readChunk(chunk);
-                            if (data != null) {
-                                response.setData(Arrays.copyOfRange(data, offset, offset + length));
-                            }
-                            break;
-                        case 'w':
-                            if (request.params.size() == 0) {
-                                response.setError(FileClient.INVALID_COMMAND);
-                                break;
-                            }
-                            chunkID = Integer.valueOf(request.params.get(0));
-                            int actualLength = Helper.charArrayLength(request.data);
+                    ret = append(fileName, chunkID, request.data, -1, true);
 
-                            boolean needACK = request.params.size() == 1;
+                    if (ret < 0) {
+                        response.setError(ret);
+                        break;
+                    }
 
-                            int size1 = write(fileName, chunkID, actualLength, request.data, needACK);
+                    response.addParam(request.data.length);
+                    break;
+                case 'd':
+                    String fileNameToDelete = request.fileName;
+                    int affected = deleteFile(fileNameToDelete);
+                    response.addParam(affected);
 
-                            response.addParam(Integer.toString(size1));
-                            break;
-                        case 'a':
-                            chunkID = Integer.valueOf(request.params.get(0));
+                    break;
+                default:
+                    System.out.println("Unknown command");
+                    response.setError(FileClient.INVALID_COMMAND);
+            }
+        }
 
-                            ret = append(fileName, chunkID, request.data, true);
+        return response;
+    }
 
-                            if (ret < 0) {
-                                response.setError(ret);
-                                break;
-                            }
-                            if (ret != request.data.length) {
-                                response.setError(FileClient.FILE_LENGTH_EXCEED);
-                                break;
-                            }
+    private static String pushKey(String fileName, int chunkID, int pushID) {
+        return fileName + "/" + chunkID + "/" + pushID;
+    }
 
-                            response.addParam(Integer.toString(ret));
-                            break;
-                        case 'd':
-                            String fileNameToDelete = request.fileName;
-                            int affected = deleteFile(fileNameToDelete);
-                            response.addParam(Integer.toString(affected));
+    /**
+     * Keep pushed chunk data for the coming commit, and forward it to the next server of the chain
+     * right away. The push is answered once every server down the chain has the data; the
+     * forward runs on its own executor, so a chain through busy servers holds no request worker
+     *
+     * @param request  push, params are push ID and the servers after this one
+     * @param response to fill with bytes received, or error code
+     * @param reply    completed with the response
+     */
+    private void receivePush(RequestEnvelop request, final ResponseEnvelop response, final RequestServer.Reply reply) {
+        int pushID = request.params.get(0);
+        pendingPushes.put(pushKey(request.fileName, request.chunkID, pushID), new PendingPush(request.data));
+
+        if (request.params.size() < 2) {
+            // end of chain
+            response.addParam(request.data.length);
+            reply.complete(response);
+            return;
+        }
 
-                            break;
-                        default:
-                            System.out.println("Unknown command");
-                            response.setError(FileClient.INVALID_COMMAND);
+        final FileServer next = allFileServerList.get(request.params.get(1));
+        if (next == null) {
+            response.setError(FileClient.FILE_SERVER_NOT_AVAILABLE);
+            reply.complete(response);
+            return;
+        }
+
+        final RequestEnvelop forward = new RequestEnvelop("push", request.fileName);
+        forward.chunkID = request.chunkID;
+        forward.addParam(pushID);
+        for (int i = 2; i < request.params.size(); i++) {
+            forward.addParam(request.params.get(i));
+        }
+        forward.setData(request.data);
+        final int received = request.data.length;
+
+        pushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ResponseEnvelop forwarded = connectionPool.exchange(next.fileServerAddress, next.requestFilePort, forward);
+                    if (forwarded.error < 0) {
+                        response.setError(forwarded.error);
+                    } else {
+                        response.addParam(received);
                     }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    response.setError(FileClient.FILE_SERVER_NOT_AVAILABLE);
+                } finally {
+                    reply.complete(response);
                 }
+            }
+        });
+    }
 
-                ObjectOutputStream output = new ObjectOutputStream(clientSock.getOutputStream());
-                output.writeObject(response);
-                output.flush();
-                output.close();
+    /**
+     * Apply pushed data to the chunk. On primary, the same commit is then sent to the replicas,
+     * which already hold the data, and meta server is ACKed. A replica whose chunk does not end
+     * where primary appended gets the whole chunk copied instead
+     *
+     * @param request commit, params are push ID, append flag, offset appended at, replicas
+     * @return bytes written, or error code
+     */
+    private int commitPush(RequestEnvelop request) {
+        String fileName = request.fileName;
+        int chunkID = request.chunkID;
+        int pushID = request.params.get(0);
+        boolean isAppend = request.params.get(1) != 0;
+        int appendOffset = request.params.get(2);
+
+        PendingPush pushed = pendingPushes.remove(pushKey(fileName, chunkID, pushID));
+        if (pushed == null) {
+            // never pushed, or expired
+            return FileClient.CHUNK_NOT_AVAILABLE;
+        }
+
+        int ret;
+        if (isAppend) {
+            // offset taken under the chunk lock, concurrent appends on primary get distinct ones
+            appendOffset = append(fileName, chunkID, pushed.data, appendOffset, false);
+            if (appendOffset < 0) {
+                return appendOffset;
+            }
+            ret = pushed.data.length;
+        } else {
+            ret = write(fileName, chunkID, pushed.data.length, pushed.data, false);
+        }
+        if (ret < 0) {
+            return ret;
+        }
 
-                //clientSock.close();
+        if (request.params.size() == 3) {
+            // replica, primary ACKs meta server
+            return ret;
+        }
 
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
+        final RequestEnvelop commit = request;
+        final String commitFile = fileName;
+        final int commitChunk = chunkID;
+        final int committedOffset = appendOffset;
+        List<Integer> replicas = request.params.subList(3, request.params.size());
+        boolean stored = replicateWithQuorum(fileName, chunkID, replicas, new ReplicaCopy() {
+            @Override
+            public int copy(int replica) {
+                if (commitOnReplica(commit, replica, committedOffset) >= 0) {
+                    return 0;
+                }
+                // replica missed the push or diverged, copy the whole chunk
+                return migrateChunkReplica(commitFile, commitChunk, replica);
             }
+        });
+        if (!stored) {
+            System.out.println("Commit quorum fail: " + fileName + " " + chunkID);
+            return FileClient.FILE_SERVER_NOT_AVAILABLE;
+        }
+        sendACKTOMeta(fileName, Collections.singletonList(chunkID));
 
+        return ret;
+    }
+
+    /**
+     * Forward commit of pushed data to one replica
+     *
+     * @param request      commit received by primary
+     * @param replica      file server ID
+     * @param appendOffset where primary appended, replica must end at the same offset
+     * @return bytes written by replica, or error code
+     */
+    private int commitOnReplica(RequestEnvelop request, int replica, int appendOffset) {
+        FileServer fileServer = allFileServerList.get(replica);
+        if (fileServer == null) {
+            return FileClient.FILE_SERVER_NOT_AVAILABLE;
+        }
+
+        RequestEnvelop commit = new RequestEnvelop("commit", request.fileName);
+        commit.chunkID = request.chunkID;
+        commit.addParam(request.params.get(0));
+        commit.addParam(request.params.get(1));
+        commit.addParam(appendOffset);
+
+        try {
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, commit);
+            if (response.error < 0) {
+                return response.error;
+            }
+            return response.params == null || response.params.isEmpty() ? -1 : response.params.get(0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return FileClient.FILE_SERVER_NOT_AVAILABLE;
+        }
+    }
+
+    /**
+     * Drop pushed data whose commit never came, e.g. client died between push and commit
+     */
+    private void expirePendingPushes() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, PendingPush>> itor = pendingPushes.entrySet().iterator();
+        while (itor.hasNext()) {
+            if (now - itor.next().getValue().receivedAt > PUSH_TIMEOUT_MILLIS) {
+                itor.remove();
+            }
         }
     }
 
@@ -565,84 +1018,119 @@ public class FileServer {
     }
 
     /**
-     * Read file chunk from disk
+     * Read part of file chunk from the store, only the bytes asked for
      *
-     * @param chunk chunk controller block
-     * @return the data read
+     * @param chunk  chunk controller block
+     * @param offset offset inside the chunk
+     * @param length bytes to read
+     * @return the data read, null if chunk is shorter
      */
-    private char[] readChunk(FileChunk chunk) {
+    private byte[] readChunkRange(FileChunk chunk, int offset, int length) {
         if (chunk == null) {
             return null;
         }
 
-        String filePath = storageDir + "/" + chunk.getChunkName();
-
-        try {
-            FileReader reader = new FileReader(filePath);
+        return chunkStore.read(chunk, offset, length);
+    }
 
-            char[] buffer = new char[FileChunk.FIXED_SIZE];
-            int size = reader.read(buffer, 0, FileChunk.FIXED_SIZE);
+    /**
+     * Read part of a chunk and verify it against checksums. A mismatch is read again under the
+     * lock of the chunk list, so that a chunk changed in between is not taken for corrupt, and
+     * reported if it persists
+     *
+     * @param chunk     controller block
+     * @param checksums of the chunk when the caller looked at it
+     * @param start     block aligned offset
+     * @param end       block aligned offset or end of chunk
+     * @return the data, null if it can not be read, does not match, or the chunk changed
+     */
+    private byte[] readVerified(FileChunk chunk, ChunkChecksums checksums, int start, int end) {
+        byte[] data = readChunkRange(chunk, start, end - start);
+        if (data != null && checksums.verify(data, start) < 0) {
+            return data;
+        }
 
-            if (size != FileChunk.FIXED_SIZE) {
-                System.out.println("Chunk size not equals to " + FileChunk.FIXED_SIZE);
+        List<FileChunk> fileChunkList = fileInfo.fileChunks.get(chunk.realFileName);
+        if (fileChunkList == null) {
+            return null;
+        }
+        synchronized (fileChunkList) {
+            if (chunk.checksums != checksums) {
+                // written or appended meanwhile
                 return null;
             }
+            data = readChunkRange(chunk, start, end - start);
+            int bad = data == null ? start : checksums.verify(data, start);
+            if (bad < 0) {
+                return data;
+            }
+            System.out.println("Checksum mismatch: " + chunk + " at " + bad);
+        }
 
-            return buffer;
+        reportCorrupt(chunk);
+        return null;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Stop serving a copy which does not match its checksums and ask meta server to copy a good
+     * replica over it. If meta server can not be told, the mark is dropped so that the next
+     * scrub tells it again
+     *
+     * @param chunk controller block
+     */
+    private void reportCorrupt(final FileChunk chunk) {
+        final String chunkName = chunk.getChunkName();
+        if (!corruptChunks.add(chunkName)) {
+            // already reported
+            return;
         }
+        chunkCache.invalidate(chunkName);
+
+        replicationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RequestEnvelop request = new RequestEnvelop("reportCorrupt", chunk.realFileName);
+                request.chunkID = chunk.chunkID;
+                request.addParam(id);
+
+                try {
+                    ResponseEnvelop response = connectionPool.exchange(metaServer.metaServerAddress, metaServer.replicaPort, request);
+                    if (response.error >= 0) {
+                        System.out.println("Corrupt " + chunkName + " restored");
+                        return;
+                    }
+                    System.out.println("Corrupt " + chunkName + " not restored: " + response.error);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                corruptChunks.remove(chunkName);
+            }
+        });
     }
 
     /**
-     * Write data in buffer to path specified by file chunk block
+     * Write data in buffer to the store as the whole chunk, with its checksums
      *
-     * @param chunk  controller block
+     * @param chunk  controller block, checksums set
      * @param buffer buffer to written
      * @return -1 if write fails, otherwise the actual size written
      */
-    private int writeChunk(FileChunk chunk, char[] buffer) {
+    private int writeChunk(FileChunk chunk, byte[] buffer) {
         if (chunk == null) {
             return -1;
         }
 
-        String filePath = storageDir + "/" + chunk.getChunkName();
-
         try {
-            File file = new File(filePath);
-            boolean bCr = file.createNewFile();
-
-            if (!bCr) {
-                System.out.println("File " + filePath);
-            }
-
-            FileWriter writer = new FileWriter(file);
-
-            if (buffer == null) {
-                // create empty file
-                return 0;
-            }
-
-            writer.write(buffer, 0, buffer.length);
-
-            // ensure each chunk is 8192 in size
-            if (buffer.length < FileChunk.FIXED_SIZE) {
-                char[] padding = new char[FileChunk.FIXED_SIZE - buffer.length];
-                writer.append(new String(padding));
-            }
-            writer.close();
-
-            return buffer.length;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return -1;
+            return chunkStore.write(chunk, buffer, chunk.checksums);
+        } finally {
+            // after the file changed, a cache fill reading it before is dropped
+            chunkCache.invalidate(chunk.getChunkName());
         }
     }
 
     /**
-     * Write function, including copy replicas, and send ACK to meta
+     * Write function, including copy replicas, and send ACK to meta. In durable mode it returns
+     * once the change is synced to disk
      * @param fileName file name
      * @param chunkID ID
      * @param actualLength length to write
@@ -650,7 +1138,7 @@ public class FileServer {
      * @param needACK need to execute copy replica and send ACK ?
      * @return negative if fail
      */
-    private int write(String fileName, int chunkID, int actualLength, char[] data, boolean needACK) {
+    private int write(String fileName, int chunkID, int actualLength, byte[] data, boolean needACK) {
         FileChunk chunk1 = new FileChunk(fileName, chunkID, actualLength);
         //System.out.println(Arrays.toString(request.data));
 
@@ -665,44 +1153,54 @@ public class FileServer {
             }
         }
         synchronized (fileChunkList) {
+            chunk1.checksums = ChunkChecksums.of(data);
             size = writeChunk(chunk1, data);
+            if (size < 0) {
+                // metadata keeps the old length and checksums, reads find what the store left
+                System.out.println("Write fail: " + fileName + " " + chunkID);
+                return size;
+            }
+            // a good copy replaced the chunk
+            corruptChunks.remove(chunk1.getChunkName());
+
+            // update meta server, under the lock so that data and checksums change together
+            addToMetaData(chunk1);
         }
 
-        // update meta server
-        addToMetaData(chunk1);
+        // durable mode, synced with concurrent writes, outside the lock so that they can join
+        if (!groupCommit.commit(chunk1)) {
+            System.out.println("Sync fail: " + fileName + " " + chunkID);
+            return FileClient.CHUNK_NOT_DURABLE;
+        }
 
         if (needACK) {
             // replicas
             List<Integer> replicas = getReplicas(fileName, chunkID);
-            System.out.println("Replicas");
-            System.out.println(Arrays.toString(replicas.toArray()));
-            for (Integer replica : replicas) {
-                int suc = migrateChunkReplica(fileName, chunkID, replica);
-                if (suc < 0) {
-                    System.out.println("Write migrate fail: " + fileName + " " + chunkID);
-                    return FileClient.FILE_SERVER_NOT_AVAILABLE;
-                } else {
-                    System.out.println("Write migrate " + fileName + " " + chunkID + " to " + replica);
-                }
+            System.out.println("Replicas " + replicas);
+            if (!replicateWithQuorum(fileName, chunkID, replicas, migrateCopy(fileName, chunkID))) {
+                System.out.println("Write quorum fail: " + fileName + " " + chunkID);
+                return FileClient.FILE_SERVER_NOT_AVAILABLE;
             }
-            sendACKTOMeta(null, true);
+            sendACKTOMeta(fileName, Collections.singletonList(chunkID));
         }
         return size;
     }
 
     /**
-     * Append function, including copy replicas, and send ACK to meta
+     * Append function, including copy replicas, and send ACK to meta. In durable mode it returns
+     * once the change is synced to disk
      * @param fileName file name
      * @param chunkID ID
      * @param data payload
+     * @param expectedOffset offset the chunk must end at, checked under the lock, -1 for any
      * @param needACK need to execute copy replica and send ACK ?
-     * @return negative if fail
+     * @return offset data was appended at, negative if fail
      */
-    private int append(String fileName, int chunkID, char[] data, boolean needACK) {
+    private int append(String fileName, int chunkID, byte[] data, int expectedOffset, boolean needACK) {
         int ret;
-        FileChunk chunk2 = getChunk(fileName, chunkID);
-        FileChunk oldChunk = getChunk(fileName, chunkID);
-        if (chunk2 == null || oldChunk == null) {
+        int appendOffset;
+        FileChunk chunk = getChunk(fileName, chunkID);
+        if (chunk == null) {
             return FileClient.CHUNK_NOT_AVAILABLE;
         }
 
@@ -711,36 +1209,57 @@ public class FileServer {
             return FileClient.FILE_NOT_EXIST;
         }
 
+        ChunkChecksums oldChecksums;
+        ChunkChecksums appendedChecksums;
         synchronized (fileChunkList) {
-            ret = appendChunk(chunk2, data);
-        }
+            appendOffset = chunk.actualLength;
+            if (expectedOffset >= 0 && appendOffset != expectedOffset) {
+                // replica diverged from primary
+                return FileClient.CAUSAL_ORDERING_VIOLATED;
+            }
 
-        if (ret < 0 || ret != data.length) {
-            return FileClient.FILE_LENGTH_EXCEED;
+            oldChecksums = chunk.checksums;
+            ret = appendChunk(chunk, data);
+            if (ret == FileClient.FILE_LENGTH_EXCEED) {
+                // client goes on with a new chunk
+                return ret;
+            }
+            if (ret != data.length) {
+                // corrupt or unreadable tail, or store failure, not a full chunk
+                return FileClient.CHUNK_NOT_AVAILABLE;
+            }
+
+            chunk.actualLength = appendOffset + ret;
+            appendedChecksums = chunk.checksums;
         }
 
-        chunk2.actualLength = oldChunk.actualLength + ret;
+        if (!groupCommit.commit(chunk)) {
+            System.out.println("Sync fail: " + fileName + " " + chunkID);
+            synchronized (fileChunkList) {
+                // the tail is still ours, the next append writes over the bytes not synced
+                if (chunk.actualLength == appendOffset + ret && chunk.checksums == appendedChecksums) {
+                    chunk.actualLength = appendOffset;
+                    chunk.checksums = oldChecksums;
+                    chunkCache.invalidate(chunk.getChunkName());
+                }
+            }
+            return FileClient.CHUNK_NOT_DURABLE;
+        }
 
-        updateMetaData(chunk2);
+        updateMetaData(chunk);
         // update meta server
 
         if (needACK) {
             List<Integer> replicas = getReplicas(fileName, chunkID);
-            System.out.println("Replicas");
-            System.out.println(Arrays.toString(replicas.toArray()));
-            for (Integer replica : replicas) {
-                int suc = migrateChunkReplica(fileName, chunkID, replica);
-                if (suc < 0) {
-                    System.out.println("Append migrate fail: " + fileName + " " + chunkID);
-                } else {
-                    System.out.println("Append migrate " + fileName + " " + chunkID + " to " + replica);
-                }
+            System.out.println("Replicas " + replicas);
+            if (!replicateWithQuorum(fileName, chunkID, replicas, migrateCopy(fileName, chunkID))) {
+                System.out.println("Append quorum fail: " + fileName + " " + chunkID);
+                return FileClient.FILE_SERVER_NOT_AVAILABLE;
             }
-
-            sendACKTOMeta(null, true);
+            sendACKTOMeta(fileName, Collections.singletonList(chunkID));
         }
 
-        return ret;
+        return appendOffset;
     }
 
     /**
@@ -758,19 +1277,24 @@ public class FileServer {
         // delete from disk
         int num = 0;
         for (FileChunk chunk : chunks) {
-            File chunkFile = new File(storageDir + "/" + chunk.getChunkName());
-            if (chunkFile.delete()) {
+            if (chunkStore.delete(chunk)) {
                 num++;
             }
+            chunkCache.invalidate(chunk.getChunkName());
         }
 
         // then delete from file info
         synchronized (fileInfo) {
             fileInfo.fileChunks.remove(fileName);
         }
+        List<Integer> removed = new ArrayList<>();
+        for (FileChunk chunk : chunks) {
+            fileInfo.markChanged(fileName, chunk.chunkID);
+            removed.add(chunk.chunkID);
+        }
 
         // update meta server
-        sendACKTOMeta(null, true);
+        sendACKTOMeta(fileName, removed);
 
         return num;
     }
@@ -798,6 +1322,8 @@ public class FileServer {
             for (FileChunk ck : chunkMap) {
                 if (ck.chunkID == chunk.chunkID) {
                     ck.actualLength = chunk.actualLength;
+                    ck.checksums = chunk.checksums;
+                    fileInfo.markChanged(chunk.realFileName, chunk.chunkID);
                     return;
                 }
             }
@@ -805,6 +1331,7 @@ public class FileServer {
             chunkMap.add(chunk);
             Collections.sort(chunkMap);
         }
+        fileInfo.markChanged(chunk.realFileName, chunk.chunkID);
     }
 
     /**
@@ -824,6 +1351,7 @@ public class FileServer {
         for (FileChunk ck : list) {
             if (ck.chunkID == chunk.chunkID) {
                 ck.actualLength = chunk.actualLength;
+                fileInfo.markChanged(chunk.realFileName, chunk.chunkID);
                 return;
             }
         }
@@ -831,77 +1359,82 @@ public class FileServer {
 
     /**
      * Append data at the end of specified chunk, the size of data can not exceed
-     * the remaining space of chunk. (null filled space). If exceed, buffer got truncated
+     * the remaining space of chunk. Data goes after the actual length of the chunk kept
+     * in metadata. The last block is read back and verified, its checksum changes with the
+     * append. Caller holds the lock of the chunk list
      *
      * @param chunk  to be appended
      * @param buffer data
      * @return -1 if fails, otherwise the actual size of data appended
      */
-    private int appendChunk(FileChunk chunk, char[] buffer) {
+    private int appendChunk(FileChunk chunk, byte[] buffer) {
         if (chunk == null) {
             return -1;
         }
 
-        // get previous data
-        char[] data = readChunk(chunk);
-        if (data == null) {
-            System.out.println("Append must occur when the specified chunk already in disk");
-            return -1;
-        }
-        int dataLength = Helper.charArrayLength(data);
-
         // data need to write exceed chunk limit
-        if (FileChunk.FIXED_SIZE - dataLength < buffer.length) {
+        if (FileChunk.FIXED_SIZE - chunk.actualLength < buffer.length) {
             return FileClient.FILE_LENGTH_EXCEED;
         }
 
-        // fill the data with content in buffer
-        int actualLengthAppended = Math.min(FileChunk.FIXED_SIZE - dataLength, buffer.length);
-        System.arraycopy(buffer, 0, data, dataLength, actualLengthAppended);
-
-        // overwrite old chunk
-        writeChunk(chunk, data);
+        ChunkChecksums old = chunk.checksums;
+        if (old == null || corruptChunks.contains(chunk.getChunkName())) {
+            return -1;
+        }
+        byte[] tail = readVerified(chunk, old, old.lastBlockStart(), old.length);
+        if (tail == null) {
+            return -1;
+        }
 
-        return actualLengthAppended;
+        ChunkChecksums updated = old.append(tail, buffer);
+        try {
+            int ret = chunkStore.append(chunk, buffer, updated);
+            if (ret >= 0) {
+                chunk.checksums = updated;
+            }
+            return ret;
+        } finally {
+            chunkCache.invalidate(chunk.getChunkName());
+        }
     }
 
     /**
-     * Send ACK to meta server carrying with chunk information, and receive commit from server
+     * Send ACK to meta server carrying the current state of the chunks just changed, and receive
+     * commit from server. A chunk no longer held is sent as removed
      *
-     * @param chunk   regarding this chunk
-     * @param success whether or not succeed to write operate this chunk
+     * @param fileName regarding this file
+     * @param chunkIDs regarding these chunks
      * @return true if ACK send to meta and meta response commit. Otherwise false
      */
-    private boolean sendACKTOMeta(FileChunk chunk, boolean success) {
-        FileInfo infoACK;
-        if (chunk == null) {
-            infoACK = this.fileInfo;
-        } else {
-            infoACK = new FileInfo();
-            List<FileChunk> list = Collections.synchronizedList(new ArrayList<FileChunk>());
-            list.add(chunk);
-            infoACK.fileChunks.put(chunk.realFileName, list);
+    private boolean sendACKTOMeta(String fileName, List<Integer> chunkIDs) {
+        FileInfo changed = new FileInfo();
+        List<FileChunk> copies = new ArrayList<>();
+        ArrayList<Integer> gone = new ArrayList<>();
+        for (Integer chunkID : chunkIDs) {
+            FileChunk copy = fileInfo.copyOfChunk(fileName, chunkID);
+            if (copy == null) {
+                gone.add(chunkID);
+            } else {
+                copies.add(copy);
+            }
+        }
+        if (!copies.isEmpty()) {
+            changed.fileChunks.put(fileName, copies);
+        }
+        HashMap<String, ArrayList<Integer>> removed = new HashMap<>();
+        if (!gone.isEmpty()) {
+            removed.put(fileName, gone);
         }
 
         try {
-            Socket toMetaSock = new Socket(metaServer.metaServerAddress, metaServer.ackPort);
-
-
-            ACKEnvelop ack = ACKEnvelop.fileServerAck(this.id, infoACK);
-            ObjectOutputStream output = new ObjectOutputStream(toMetaSock.getOutputStream());
-            output.writeObject(ack);
-            output.flush();
-
-            ObjectInputStream input = new ObjectInputStream(toMetaSock.getInputStream());
-            ACKEnvelop ackFromMeta = (ACKEnvelop) input.readObject();
-
-            input.close();
+            ACKEnvelop ack = ACKEnvelop.fileServerAck(this.id, changed, removed);
+            ACKEnvelop ackFromMeta = connectionPool.exchangeAck(metaServer.metaServerAddress, metaServer.ackPort, ack);
 
             if (ackFromMeta.type != ACKEnvelop.META_SERVER_ACK || ackFromMeta.ackNo != ack.ackNo) {
                 return false;
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
@@ -931,18 +1464,10 @@ public class FileServer {
      */
     private List<Integer> fetchReplicasFromMeta(String fileName, int chunkID) {
         try {
-            Socket sock = new Socket(metaServer.metaServerAddress, metaServer.replicaPort);
-
             RequestEnvelop request = new RequestEnvelop("fetchReplicas", fileName);
             request.chunkID = chunkID;
 
-            ObjectOutputStream output = new ObjectOutputStream(sock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
-
-            ObjectInputStream input = new ObjectInputStream(sock.getInputStream());
-            ResponseEnvelop response = (ResponseEnvelop) input.readObject();
-            input.close();
+            ResponseEnvelop response = connectionPool.exchange(metaServer.metaServerAddress, metaServer.replicaPort, request);
 
             if (response.chunksLocation == null) {
                 return null;
@@ -951,9 +1476,6 @@ public class FileServer {
 
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            System.exit(-1);
         }
 
         return null;
@@ -974,26 +1496,30 @@ public class FileServer {
             return FileClient.FILE_SERVER_NOT_AVAILABLE;
         }
 
+        FileChunk chunk = getChunk(fileName, chunkID);
+        if (chunk == null) {
+            return FileClient.CHUNK_NOT_AVAILABLE;
+        }
+        ChunkChecksums checksums = chunk.checksums;
+        if (checksums == null || corruptChunks.contains(chunk.getChunkName())) {
+            return FileClient.CHUNK_NOT_AVAILABLE;
+        }
+        // a corrupt copy is never spread
+        byte[] data = readVerified(chunk, checksums, 0, checksums.length);
+        if (data == null) {
+            return FileClient.CHUNK_NOT_AVAILABLE;
+        }
+
         try {
-            Socket targetSock = new Socket(fileServer.fileServerAddress, fileServer.requestFilePort);
             RequestEnvelop request = new RequestEnvelop("replica", fileName);
-            request.addParam(Integer.toString(chunkID));
-            FileChunk chunk = getChunk(fileName, chunkID);
-            if (chunk == null) {
-                return FileClient.CHUNK_NOT_AVAILABLE;
+            request.addParam(chunkID);
+            for (int sum : checksums.sums) {
+                request.addParam(sum);
             }
-            char[] data = readChunk(chunk);
-            request.data = Arrays.copyOf(data, chunk.actualLength);
-
-            // no ACK to meta
-            request.addParam("no");
+            request.data = data;
 
-            ObjectOutputStream output = new ObjectOutputStream(targetSock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
-
-            ObjectInputStream input = new ObjectInputStream(targetSock.getInputStream());
-            ResponseEnvelop response = (ResponseEnvelop) input.readObject();
+            // replica command never sends ACK to meta
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, request);
 
             if (response.error < 0) {
                 return -1;
@@ -1003,9 +1529,9 @@ public class FileServer {
                 return -1;
             }
 
-            int responseLength = Integer.parseInt(response.params.get(0));
-            if (responseLength != chunk.actualLength) {
-                System.out.println("Data length not match: request=" + chunk.actualLength + " response=" + responseLength);
+            int responseLength = response.params.get(0);
+            if (responseLength != data.length) {
+                System.out.println("Data length not match: request=" + data.length + " response=" + responseLength);
                 return -1;
             }
 
@@ -1014,9 +1540,6 @@ public class FileServer {
         } catch (IOException e) {
             e.printStackTrace();
             return -1;
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            return -1;
         }
     }
 
@@ -1025,19 +1548,229 @@ public class FileServer {
      */
     private void initialize() {
         fileInfo.setFileDir(this.storageDir);
-        fileInfo.recoverFileInfoFromDisk();
+        chunkStore.recover(fileInfo);
+        groupCommit.start(chunkStore);
         metaServer.resolveAddress();
         resolveAddress();
         resolveAllFileServerAddress();
     }
 
+    /**
+     * Copy a chunk stored here to all its replicas at the same time, and wait only until the
+     * write quorum, this server included, has stored it. Replicas which fail are queued for
+     * repair, replicas still copying when the quorum is reached finish in background.
+     *
+     * @param fileName file name
+     * @param chunkID  ID
+     * @param replicas file server IDs, may be null
+     * @param copy     copy to one replica
+     * @return true if quorum stored the chunk
+     */
+    private boolean replicateWithQuorum(final String fileName, final int chunkID, List<Integer> replicas,
+                                        final ReplicaCopy copy) {
+        if (replicas == null) {
+            replicas = new ArrayList<>();
+        }
+        // quorum can not ask for more copies than exist
+        int needed = Math.min(Math.max(writeQuorum, 1), replicas.size() + 1) - 1;
+
+        CompletionService<Boolean> copies = new ExecutorCompletionService<>(replicationExecutor);
+        for (final Integer replica : replicas) {
+            copies.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (copy.copy(replica) >= 0) {
+                        return true;
+                    }
+                    System.out.println("Replicate fail: " + fileName + " " + chunkID + " to " + replica);
+                    scheduleRepair(new RepairTask(fileName, chunkID, replica));
+                    return false;
+                }
+            });
+        }
+
+        int stored = 0;
+        int pending = replicas.size();
+        while (stored < needed && stored + pending >= needed) {
+            try {
+                pending--;
+                if (copies.take().get()) {
+                    stored++;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        return stored >= needed;
+    }
+
+    /**
+     * @return copy which migrates the whole chunk to replica
+     */
+    private ReplicaCopy migrateCopy(final String fileName, final int chunkID) {
+        return new ReplicaCopy() {
+            @Override
+            public int copy(int replica) {
+                return migrateChunkReplica(fileName, chunkID, replica);
+            }
+        };
+    }
+
+    /**
+     * Queue replica to copy the chunk again, unless it is already queued
+     *
+     * @param task replica which missed a write
+     */
+    private void scheduleRepair(RepairTask task) {
+        if (repairing.add(task.key())) {
+            repairQueue.offer(task);
+        }
+    }
+
+    /**
+     * Create a new thread to copy chunks to replicas which missed them. A replica still failing
+     * after MAX_REPAIR_ATTEMPTS is left to meta server, which migrates chunks of failed servers
+     */
+    private void prepareToRepair() {
+        Thread threadRepair = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    RepairTask task;
+                    try {
+                        task = repairQueue.take();
+                        // give a replica which just failed time to come back
+                        Thread.sleep(REPAIR_BACKOFF_MILLIS);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+
+                    task.attempts++;
+                    int ret = migrateChunkReplica(task.fileName, task.chunkID, task.replica);
+                    if (ret >= 0) {
+                        System.out.println("Repair " + task.fileName + " " + task.chunkID + " to " + task.replica);
+                    } else if (task.attempts < MAX_REPAIR_ATTEMPTS) {
+                        repairQueue.offer(task);
+                        continue;
+                    } else {
+                        System.out.println("Repair give up: " + task.fileName + " " + task.chunkID + " to " + task.replica);
+                    }
+                    repairing.remove(task.key());
+                }
+            }
+        });
+
+        threadRepair.setDaemon(true);
+        threadRepair.start();
+    }
+
+    /**
+     * Create a new thread reading every chunk stored here once per pass and verifying it
+     * against its checksums, so that a copy gone bad on disk is replaced while good ones are
+     * left. Reads are paced to scrubBytesPerSecond
+     */
+    private void prepareToScrub() {
+        if (scrubBytesPerSecond <= 0) {
+            return;
+        }
+
+        Thread threadScrub = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(scrubPassIntervalMillis);
+                        scrub();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        threadScrub.setDaemon(true);
+        threadScrub.start();
+    }
+
+    /**
+     * One scrub pass over the chunks stored when it starts
+     *
+     * @throws InterruptedException if interrupted while pacing
+     */
+    private void scrub() throws InterruptedException {
+        List<FileChunk> chunks = new ArrayList<>();
+        for (Map.Entry<String, List<FileChunk>> pair : fileInfo) {
+            synchronized (pair.getValue()) {
+                chunks.addAll(pair.getValue());
+            }
+        }
+
+        long started = System.currentTimeMillis();
+        long bytes = 0;
+        int corrupt = 0;
+        for (FileChunk chunk : chunks) {
+            if (corruptChunks.contains(chunk.getChunkName())) {
+                // reported, waiting for a good copy
+                corrupt++;
+                continue;
+            }
+            ChunkChecksums checksums = chunk.checksums;
+            if (checksums == null) {
+                // could not be read on recovery
+                reportCorrupt(chunk);
+                corrupt++;
+                continue;
+            }
+
+            readVerified(chunk, checksums, 0, checksums.length);
+            if (corruptChunks.contains(chunk.getChunkName())) {
+                corrupt++;
+            }
+
+            bytes += checksums.length;
+            long wait = started + bytes * 1000 / scrubBytesPerSecond - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        }
+
+        System.out.println(String.format("Scrub: chunks=%d corrupt=%d KB=%d millis=%d", chunks.size(), corrupt,
+                bytes / 1024, System.currentTimeMillis() - started));
+    }
+
     private void keepLive() {
+        long lastFrames = 0;
+        long lastLookups = 0;
+        long lastCommits = 0;
         while (true) {
             try {
                 Thread.sleep(5000);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+
+            expirePendingPushes();
+
+            // report only when something was compressed since last time
+            long frames = compressor.compressedFrames.get();
+            if (frames != lastFrames) {
+                System.out.println(compressor.report());
+                lastFrames = frames;
+            }
+            long lookups = chunkCache.lookups();
+            if (lookups != lastLookups) {
+                System.out.println(chunkCache.report());
+                lastLookups = lookups;
+            }
+            long commits = groupCommit.commits();
+            if (commits != lastCommits) {
+                System.out.println(groupCommit.report());
+                lastCommits = commits;
+            }
         }
     }
 
@@ -1047,9 +1780,13 @@ public class FileServer {
     public void launch() {
         initialize();
 
+        prepareToSendPing();
+
         prepareToSendHeartbeat();
 
-        prepareToReceiveCommandFromMeta();
+        prepareToRepair();
+
+        prepareToScrub();
 
         prepareToReceiveRequest();
 
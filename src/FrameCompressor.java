@@ -0,0 +1,119 @@
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of frames on connections which agreed on DEFLATE in their HELLO exchange.
+ * Frames with bodies under the threshold, e.g. small appends and control messages,
+ * are sent as they are. Keeps counters to report the compression ratio.
+ */
+public class FrameCompressor {
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    boolean enabled = true;
+    // bodies smaller than this are not worth compressing
+    int threshold = DEFAULT_THRESHOLD;
+
+    // body bytes before and after compression of compressed frames
+    final AtomicLong rawBytes = new AtomicLong();
+    final AtomicLong compressedBytes = new AtomicLong();
+    final AtomicLong compressedFrames = new AtomicLong();
+    // frames sent as they are on a compressing connection, too small or incompressible
+    final AtomicLong plainFrames = new AtomicLong();
+
+    // deflater keeps native memory, one per thread is reused
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    /**
+     * Build compressor from optional &lt;compression&gt; element of XML config
+     *
+     * @param compressionNode element, may be null
+     * @return compressor with defaults overridden by config
+     */
+    public static FrameCompressor fromConfig(Node compressionNode) {
+        FrameCompressor compressor = new FrameCompressor();
+        if (compressionNode == null) {
+            return compressor;
+        }
+
+        NodeList compressionConfig = compressionNode.getChildNodes();
+        for (int j = 0; j < compressionConfig.getLength(); j++) {
+            Node oneConfig = compressionConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("enabled")) {
+                compressor.enabled = Boolean.parseBoolean(text);
+            }
+            if (nodeName.equals("threshold")) {
+                compressor.threshold = Integer.parseInt(text);
+            }
+        }
+        return compressor;
+    }
+
+    /**
+     * @return features to offer in HELLO
+     */
+    public int features() {
+        return enabled ? WireProtocol.FEATURE_DEFLATE : 0;
+    }
+
+    /**
+     * Features both sides support
+     *
+     * @param peerFeatures offered by peer
+     * @return agreed features
+     */
+    public int agree(int peerFeatures) {
+        return features() & peerFeatures;
+    }
+
+    /**
+     * Compress frame if its body is large enough and compression pays off
+     *
+     * @param frame whole encoded frame
+     * @return frame to send, compressed or the same
+     * @throws IOException if encoding fails
+     */
+    public byte[] compress(byte[] frame) throws IOException {
+        int rawLength = frame.length - WireProtocol.HEADER_SIZE;
+        if (rawLength < threshold) {
+            plainFrames.incrementAndGet();
+            return frame;
+        }
+
+        byte[] compressed = WireProtocol.deflateFrame(frame, deflaters.get());
+        if (compressed == null) {
+            plainFrames.incrementAndGet();
+            return frame;
+        }
+
+        compressedFrames.incrementAndGet();
+        rawBytes.addAndGet(rawLength);
+        compressedBytes.addAndGet(compressed.length - WireProtocol.HEADER_SIZE);
+        return compressed;
+    }
+
+    /**
+     * @return counters in one line, ratio is raw bytes over compressed bytes
+     */
+    public String report() {
+        long raw = rawBytes.get();
+        long compressed = compressedBytes.get();
+        double ratio = compressed == 0 ? 0 : (double) raw / compressed;
+        return String.format("compression: frames=%d plain=%d raw=%d compressed=%d ratio=%.2f",
+                compressedFrames.get(), plainFrames.get(), raw, compressed, ratio);
+    }
+}
@@ -0,0 +1,202 @@
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable write mode of a file server. A write or append is acknowledged only once it is on
+ * disk, and concurrent ones share the sync: each queues the chunk it changed and waits, one
+ * thread takes everything queued, up to maxBatch, and syncs the store once for the group.
+ * A group waits at most maxDelayMicros for more writes to join. Disabled, nothing waits and
+ * the operating system writes data back when it likes.
+ */
+public class GroupCommit {
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final int DEFAULT_MAX_DELAY_MICROS = 1000;
+
+    boolean enabled = false;
+    int maxBatch = DEFAULT_MAX_BATCH;
+    int maxDelayMicros = DEFAULT_MAX_DELAY_MICROS;
+
+    /**
+     * One change waiting for its group to be synced
+     */
+    static class Pending {
+        final FileChunk chunk;
+        private boolean done = false;
+        private boolean durable = false;
+
+        Pending(FileChunk chunk) {
+            this.chunk = chunk;
+        }
+
+        synchronized void complete(boolean durable) {
+            this.durable = durable;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized boolean await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+            return durable;
+        }
+    }
+
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private ChunkStore store;
+
+    long groups = 0;
+    long commits = 0;
+    long failures = 0;
+
+    /**
+     * Build from optional &lt;groupCommit&gt; element of XML config
+     *
+     * @param commitNode element, may be null
+     * @return group commit with defaults overridden by config, not started
+     */
+    public static GroupCommit fromConfig(Node commitNode) {
+        GroupCommit groupCommit = new GroupCommit();
+        if (commitNode == null) {
+            return groupCommit;
+        }
+
+        NodeList commitConfig = commitNode.getChildNodes();
+        for (int j = 0; j < commitConfig.getLength(); j++) {
+            Node oneConfig = commitConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("enabled")) {
+                groupCommit.enabled = Boolean.parseBoolean(text);
+            }
+            if (nodeName.equals("maxBatch")) {
+                groupCommit.maxBatch = Math.max(1, Integer.parseInt(text));
+            }
+            if (nodeName.equals("maxDelayMicros")) {
+                groupCommit.maxDelayMicros = Math.max(0, Integer.parseInt(text));
+            }
+        }
+        return groupCommit;
+    }
+
+    /**
+     * Start the thread syncing groups, nothing is started if disabled
+     *
+     * @param store store the changes are made to
+     */
+    public void start(ChunkStore store) {
+        if (!enabled) {
+            return;
+        }
+        this.store = store;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        commitGroup();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "groupCommit");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait until a change just made to the store is on disk, returns at once if disabled
+     *
+     * @param chunk chunk written or appended
+     * @return false if the change may not be on disk
+     */
+    public boolean commit(FileChunk chunk) {
+        if (!enabled) {
+            return true;
+        }
+
+        Pending pending = new Pending(chunk);
+        queue.offer(pending);
+        try {
+            return pending.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Take one group from the queue, sync it and wake its writers
+     *
+     * @throws InterruptedException if interrupted while waiting for the first write
+     */
+    private void commitGroup() throws InterruptedException {
+        List<Pending> group = new ArrayList<>();
+        group.add(queue.take());
+
+        // writes queued during the last sync are taken at once, then a little wait for more
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        while (group.size() < maxBatch) {
+            queue.drainTo(group, maxBatch - group.size());
+            long left = deadline - System.nanoTime();
+            if (group.size() >= maxBatch || left <= 0) {
+                break;
+            }
+            Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            group.add(next);
+        }
+
+        List<FileChunk> chunks = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            chunks.add(pending.chunk);
+        }
+        boolean durable = false;
+        try {
+            durable = store.sync(chunks);
+        } finally {
+            count(group.size(), durable);
+            for (Pending pending : group) {
+                pending.complete(durable);
+            }
+        }
+    }
+
+    private synchronized void count(int size, boolean durable) {
+        groups++;
+        commits += size;
+        if (!durable) {
+            failures++;
+        }
+    }
+
+    /**
+     * @return writes committed so far
+     */
+    public synchronized long commits() {
+        return commits;
+    }
+
+    /**
+     * @return counters in one line
+     */
+    public synchronized String report() {
+        double perGroup = groups == 0 ? 0 : (double) commits / groups;
+        return String.format("group commit: groups=%d commits=%d perGroup=%.1f failures=%d",
+                groups, commits, perGroup, failures);
+    }
+}
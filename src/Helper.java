@@ -2,12 +2,12 @@ import java.util.List;
 
 public class Helper {
     /**
-     * Return the length of sub-array whose last char is the last non-null char of buffer
+     * Return the length of sub-array whose last byte is the last non-zero byte of buffer
      *
-     * @param buffer raw buffer, who may have null
-     * @return non-null length
+     * @param buffer raw buffer, who may have zero padding
+     * @return non-zero length
      */
-    public static int charArrayLength(char[] buffer) {
+    public static int byteArrayLength(byte[] buffer) {
         if (buffer == null) {
             return 0;
         }
@@ -0,0 +1,133 @@
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side cache of chunk locations of recently read files, so reading a file again does
+ * not go through meta server. Least recently used file is evicted first. Every entry keeps the
+ * metadata version meta server answered with; a refreshed entry with the same version means
+ * the locations were right and the failure was elsewhere.
+ */
+public class LocationCache {
+    public static final int DEFAULT_MAX_FILES = 1024;
+
+    /**
+     * Locations of all chunks of one file, index is chunk ID
+     */
+    static class Entry {
+        final long version;
+        final List<Integer> locations;
+        // readable replicas, two per chunk, -1 where none
+        final List<Integer> replicas;
+        // bytes in last chunk, -1 if not known
+        final int lastChunkLength;
+
+        Entry(long version, List<Integer> locations, List<Integer> replicas, int lastChunkLength) {
+            this.version = version;
+            this.locations = locations;
+            this.replicas = replicas;
+            this.lastChunkLength = lastChunkLength;
+        }
+
+        /**
+         * @return bytes in file, every chunk but the last is full
+         */
+        long length() {
+            if (locations.isEmpty()) {
+                return 0;
+            }
+            int last = lastChunkLength < 0 ? FileChunk.FIXED_SIZE : lastChunkLength;
+            return (long) (locations.size() - 1) * FileChunk.FIXED_SIZE + last;
+        }
+
+        /**
+         * @param chunkID chunk ID
+         * @return primary then replicas, -1 where none
+         */
+        List<Integer> copies(int chunkID) {
+            List<Integer> copies = new ArrayList<>(3);
+            copies.add(locations.get(chunkID));
+            if (replicas.size() >= 2 * (chunkID + 1)) {
+                copies.add(replicas.get(2 * chunkID));
+                copies.add(replicas.get(2 * chunkID + 1));
+            }
+            return copies;
+        }
+    }
+
+    // files kept, 0 disables caching
+    int maxFiles = DEFAULT_MAX_FILES;
+
+    // access ordered, eldest is least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LocationCache.Entry> eldest) {
+            return size() > maxFiles;
+        }
+    };
+
+    /**
+     * Build cache from optional &lt;locationCache&gt; element of XML config
+     *
+     * @param cacheNode element, may be null
+     * @return cache with defaults overridden by config
+     */
+    public static LocationCache fromConfig(Node cacheNode) {
+        LocationCache cache = new LocationCache();
+        if (cacheNode == null) {
+            return cache;
+        }
+
+        NodeList cacheConfig = cacheNode.getChildNodes();
+        for (int j = 0; j < cacheConfig.getLength(); j++) {
+            Node oneConfig = cacheConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            if (oneConfig.getNodeName().equals("maxFiles")) {
+                cache.maxFiles = Integer.parseInt(oneConfig.getTextContent().trim());
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param fileName file
+     * @return cached locations, null if not cached
+     */
+    public synchronized Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * Cache locations returned by meta server
+     *
+     * @param fileName        file
+     * @param version         metadata version of the file
+     * @param locations       file server ID of every chunk
+     * @param replicas        readable replicas, two per chunk, may be null
+     * @param lastChunkLength bytes in last chunk, -1 if not known
+     * @return the entry, usable even if caching is disabled
+     */
+    public synchronized Entry put(String fileName, long version, List<Integer> locations, List<Integer> replicas,
+                                  int lastChunkLength) {
+        Entry entry = new Entry(version, new ArrayList<>(locations),
+                replicas == null ? new ArrayList<Integer>() : new ArrayList<>(replicas), lastChunkLength);
+        entries.put(fileName, entry);
+        return entry;
+    }
+
+    /**
+     * Drop a file whose cached locations are known or suspected to be stale
+     *
+     * @param fileName file
+     */
+    public synchronized void invalidate(String fileName) {
+        entries.remove(fileName);
+    }
+}
@@ -14,6 +14,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MetaServer {
 
@@ -22,6 +23,8 @@ public class MetaServer {
     InetAddress metaServerAddress;
     // port to listen to heartbeat connections
     int receiveHeartbeatPort;
+    // UDP port to receive liveness pings, same number as heartbeat port if not configured
+    int livenessPort = -1;
     // port to listen to client requests
     int clientPort;
     // port to receive ACKs
@@ -31,6 +34,15 @@ public class MetaServer {
 
     // socket to listen to heartbeat connections
     ServerSocket receiveHeartbeatSock;
+    // socket to receive liveness pings
+    DatagramSocket livenessSock;
+
+    // file servers ping this often
+    int pingIntervalMillis = 1000;
+    // pings missed in a row before a file server is declared down
+    int missedPingsToFail = 3;
+    // a ping this late after the interval is not missed yet, -1 for one ping interval
+    int pingGraceMillis = -1;
     // socket to listen to client requests
     ServerSocket receiveRequestSock;
     // socket to listen to ACKs
@@ -53,6 +65,11 @@ public class MetaServer {
     // map the file server id to file information on this file server
     final Map<Integer, FileInfo> fileServerInfoMap = new ConcurrentHashMap<>();
 
+    // metadata version of each file, bumped whenever its chunks or their locations change
+    final Map<String, Long> fileVersions = new ConcurrentHashMap<>();
+    // versions are never reused, not even by a file deleted and written again
+    private final AtomicLong versionSeries = new AtomicLong();
+
     // pending file chunks not send to file servers
     // file name -> hash map to chunk id -> file server id expected to store
     //final Map<String, Map<Integer, Integer>> pendingFileChunks = new ConcurrentHashMap<>();
@@ -73,8 +90,26 @@ public class MetaServer {
     // load balance control
     LoadBalancer loadBalancer;
 
-    // timeout of heartbeat on established connection
-    int timeoutMillis = 5000;
+    // keep-alive connections to file servers
+    ConnectionPool connectionPool;
+
+    // max requests executed at the same time on client, ACK and replica port
+    int clientConcurrency = EndpointExecutor.DEFAULT_MAX_CONCURRENT;
+    int ackConcurrency = EndpointExecutor.DEFAULT_MAX_CONCURRENT;
+    int replicaConcurrency = EndpointExecutor.DEFAULT_MAX_CONCURRENT;
+    long idleThreadMillis = EndpointExecutor.DEFAULT_IDLE_THREAD_MILLIS;
+
+    // agreed with peers in HELLO on every endpoint
+    FrameCompressor compressor = new FrameCompressor();
+
+    EndpointExecutor clientExecutor;
+    EndpointExecutor ackExecutor;
+    EndpointExecutor replicaExecutor;
+
+    // file servers send block reports this often, liveness is carried by pings
+    int reportIntervalMillis = 5000;
+    // heartbeat connection silent for this many report intervals is dropped
+    static final int HEARTBEAT_TIMEOUT_INTERVALS = 3;
 
     public MetaServer() {
     }
@@ -124,6 +159,11 @@ public class MetaServer {
             parseXMLToConfigMetaServer(metaServerNode);
             // config for file server virtual machine
             parseXMLToConfigFileServers(doc);
+            connectionPool = ConnectionPool.fromConfig(doc.getElementsByTagName("connectionPool").item(0));
+            compressor = FrameCompressor.fromConfig(doc.getElementsByTagName("compression").item(0));
+            connectionPool.compressor = compressor;
+            parseXMLToConfigHeartbeat(doc.getElementsByTagName("heartbeat").item(0));
+            parseXMLToConfigExecutors(doc.getElementsByTagName("metaServerExecutor").item(0));
 
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
@@ -195,6 +235,84 @@ public class MetaServer {
             if (nodeName.equals("replicaPort")) {
                 this.replicaPort = Integer.parseInt(text);
             }
+            if (nodeName.equals("livenessPort")) {
+                this.livenessPort = Integer.parseInt(text);
+            }
+        }
+    }
+
+    /**
+     * @return UDP port liveness pings go to
+     */
+    public int livenessPort() {
+        return livenessPort > 0 ? livenessPort : receiveHeartbeatPort;
+    }
+
+    /**
+     * Retrieve liveness ping and block report settings
+     *
+     * @param heartbeatNode optional element of XML config, may be null
+     */
+    private void parseXMLToConfigHeartbeat(Node heartbeatNode) {
+        if (heartbeatNode == null) {
+            return;
+        }
+
+        NodeList heartbeatConfig = heartbeatNode.getChildNodes();
+        for (int j = 0; j < heartbeatConfig.getLength(); j++) {
+            Node oneConfig = heartbeatConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("pingIntervalMillis")) {
+                pingIntervalMillis = Integer.parseInt(text);
+            }
+            if (nodeName.equals("missedPingsToFail")) {
+                missedPingsToFail = Integer.parseInt(text);
+            }
+            if (nodeName.equals("pingGraceMillis")) {
+                pingGraceMillis = Integer.parseInt(text);
+            }
+            if (nodeName.equals("reportIntervalMillis")) {
+                reportIntervalMillis = Integer.parseInt(text);
+            }
+        }
+    }
+
+    /**
+     * Retrieve concurrency limits of endpoints
+     *
+     * @param executorNode optional element of XML config, may be null
+     */
+    private void parseXMLToConfigExecutors(Node executorNode) {
+        if (executorNode == null) {
+            return;
+        }
+
+        NodeList executorConfig = executorNode.getChildNodes();
+        for (int j = 0; j < executorConfig.getLength(); j++) {
+            Node oneConfig = executorConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("clientConcurrency")) {
+                clientConcurrency = Integer.parseInt(text);
+            }
+            if (nodeName.equals("ackConcurrency")) {
+                ackConcurrency = Integer.parseInt(text);
+            }
+            if (nodeName.equals("replicaConcurrency")) {
+                replicaConcurrency = Integer.parseInt(text);
+            }
+            if (nodeName.equals("idleThreadMillis")) {
+                idleThreadMillis = Long.parseLong(text);
+            }
         }
     }
 
@@ -247,6 +365,48 @@ public class MetaServer {
         heartbeatHandleThread.start();
     }
 
+    /**
+     * Create a new thread to receive liveness pings. A ping is a datagram of fixed size,
+     * so how much a file server holds never delays it.
+     */
+    private void prepareToReceivePing() {
+        System.out.println("Meta server receive ping port: " + livenessPort());
+        try {
+            livenessSock = new DatagramSocket(livenessPort());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+
+        Thread pingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[WireProtocol.PING_SIZE + 1];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (true) {
+                    try {
+                        packet.setLength(buffer.length);
+                        livenessSock.receive(packet);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+
+                    int id = WireProtocol.pingSender(packet.getData(), packet.getLength());
+                    FileServer fileServer = allFileServerList.get(id);
+                    // ignore garbage and pings claiming the ID of another host
+                    if (fileServer == null || !packet.getAddress().equals(fileServer.fileServerAddress)) {
+                        continue;
+                    }
+                    fileServerHeartbeatTouch(id);
+                }
+            }
+        });
+
+        pingThread.setDaemon(true);
+        pingThread.start();
+    }
+
     /**
      * Create a new thread to listen to all client requests.
      */
@@ -268,10 +428,7 @@ public class MetaServer {
                         Socket clientSock = receiveRequestSock.accept();
                         System.out.println("Receive request from: " + clientSock.getInetAddress().toString());
 
-                        ResponseFileRequestEntity responseFileRequestEntity = new ResponseFileRequestEntity(clientSock);
-                        Thread threadResponse = new Thread(responseFileRequestEntity);
-                        threadResponse.setDaemon(true);
-                        threadResponse.start();
+                        clientExecutor.executeConnection(new ResponseFileRequestEntity(clientSock));
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -302,31 +459,12 @@ public class MetaServer {
 
                     try {
                         Socket ackSock = receiveAckSock.accept();
-                        ObjectInputStream input = new ObjectInputStream(ackSock.getInputStream());
-                        ACKEnvelop ack = (ACKEnvelop) input.readObject();
-
-                        if (ack.type == ACKEnvelop.FILE_SERVER_ACK) {
-                            int remoteID = identifyConnection(ackSock);
 
-                            // update file chunk information in meta server
-                            synchronizeWithMap(remoteID, ack.fileInfo);
-
-                        } else if (ack.type == ACKEnvelop.CLIENT_ACK) {
-
-                        }
-
-                        ACKEnvelop ackResponse = ACKEnvelop.metaServerAck(ack.ackNo);
-
-                        ObjectOutputStream output = new ObjectOutputStream(ackSock.getOutputStream());
-                        output.writeObject(ackResponse);
-                        output.flush();
-                        output.close();
+                        // pooled connections stay open, so each one needs its own handler
+                        ackExecutor.executeConnection(new AckEntity(ackSock));
 
                     } catch (IOException e) {
                         e.printStackTrace();
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                        System.exit(-1);
                     }
                 }
             }
@@ -353,25 +491,11 @@ public class MetaServer {
                 while (true) {
                     try {
                         Socket replicaFetchSock = receiveReplicaFetch.accept();
-                        ObjectInputStream input = new ObjectInputStream(replicaFetchSock.getInputStream());
-                        RequestEnvelop request = (RequestEnvelop) input.readObject();
 
-                        ResponseEnvelop response = new ResponseEnvelop(request);
-
-                        if (request.cmd.equals("fetchReplicas")) {
-                            List<Integer> replicas = getReplicas(request.fileName, request.chunkID);
-                            response.chunksLocation = new LinkedList<>(replicas);
-                        }
-
-                        ObjectOutputStream output = new ObjectOutputStream(replicaFetchSock.getOutputStream());
-                        output.writeObject(response);
-                        output.flush();
+                        replicaExecutor.executeConnection(new ReplicaFetchEntity(replicaFetchSock));
 
                     } catch (IOException e) {
                         e.printStackTrace();
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                        System.exit(-1);
                     }
                 }
             }
@@ -381,6 +505,177 @@ public class MetaServer {
         replicaThread.start();
     }
 
+    /**
+     * Thread reading frames from one connection. Every frame is answered by its own task on the
+     * endpoint executor, so a slow answer does not hold up the frames behind it; answers carry
+     * the stream ID of their frame and are written under the output lock. Reading stops while
+     * all workers of the endpoint are busy.
+     */
+    abstract class StreamEntity implements Runnable {
+
+        final Socket sock;
+        final EndpointExecutor executor;
+        OutputStream output;
+        // set once compression is agreed in HELLO
+        volatile FrameCompressor agreed;
+
+        StreamEntity(Socket sock, EndpointExecutor executor) {
+            this.sock = sock;
+            this.executor = executor;
+        }
+
+        /**
+         * Answer one frame
+         *
+         * @param frame from remote
+         * @return encoded answer carrying stream ID of the frame
+         * @throws IOException if frame is malformed
+         */
+        abstract byte[] answer(WireProtocol.Frame frame) throws IOException;
+
+        @Override
+        public void run() {
+            try {
+                InputStream input = new BufferedInputStream(sock.getInputStream());
+                output = sock.getOutputStream();
+
+                while (true) {
+                    final WireProtocol.Frame frame;
+                    try {
+                        frame = WireProtocol.readFrame(input);
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    if (frame.isHello()) {
+                        int features = compressor.agree(frame.hello());
+                        if ((features & WireProtocol.FEATURE_DEFLATE) != 0) {
+                            agreed = compressor;
+                        }
+                        synchronized (output) {
+                            WireProtocol.writeFrame(output, WireProtocol.helloFrame(features, frame.streamID));
+                        }
+                        continue;
+                    }
+
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            answerAndWrite(frame);
+                        }
+                    });
+                }
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            try {
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void answerAndWrite(WireProtocol.Frame frame) {
+            byte[] reply;
+            try {
+                reply = answer(frame);
+            } catch (IOException e) {
+                // stream is out of step, nothing sensible to answer
+                e.printStackTrace();
+                try {
+                    sock.close();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+                return;
+            }
+
+            try {
+                FrameCompressor compressing = agreed;
+                if (compressing != null) {
+                    reply = compressing.compress(reply);
+                }
+                synchronized (output) {
+                    WireProtocol.writeFrame(output, reply);
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Thread to handle ACKs on one connection
+     */
+    class AckEntity extends StreamEntity {
+
+        public AckEntity(Socket ackSock) {
+            super(ackSock, ackExecutor);
+        }
+
+        @Override
+        byte[] answer(WireProtocol.Frame frame) throws IOException {
+            ACKEnvelop ack = frame.ack();
+
+            if (ack.type == ACKEnvelop.FILE_SERVER_ACK) {
+                int remoteID = identifyConnection(sock);
+
+                // update file chunk information in meta server, only the chunks changed are sent
+                BlockReport delta = new BlockReport(false, 0, 0);
+                delta.fileInfo = ack.fileInfo == null ? new FileInfo() : ack.fileInfo;
+                delta.removed.putAll(ack.chunkMap);
+                if (!applyDelta(remoteID, delta)) {
+                    // first full report of the server is still to come, it carries these chunks
+                    System.out.println("ACK before block report from " + remoteID);
+                }
+
+            } else if (ack.type == ACKEnvelop.CLIENT_ACK) {
+
+            }
+
+            ACKEnvelop ackResponse = ACKEnvelop.metaServerAck(ack.ackNo);
+            return WireProtocol.ackFrame(ackResponse, frame.streamID);
+        }
+    }
+
+    /**
+     * Thread to handle replica fetch requests from one file server connection
+     */
+    class ReplicaFetchEntity extends StreamEntity {
+
+        public ReplicaFetchEntity(Socket replicaFetchSock) {
+            super(replicaFetchSock, replicaExecutor);
+        }
+
+        @Override
+        byte[] answer(WireProtocol.Frame frame) throws IOException {
+            RequestEnvelop request = frame.request();
+            ResponseEnvelop response = new ResponseEnvelop(request);
+
+            if (request.cmd.equals("fetchReplicas")) {
+                List<Integer> replicas = getReplicas(request.fileName, request.chunkID);
+                if (replicas != null) {
+                    response.chunksLocation = new LinkedList<>(replicas);
+                } else {
+                    response.setError(-1);
+                }
+            } else if (request.cmd.equals("reportCorrupt")) {
+                if (request.params.isEmpty()) {
+                    response.setError(FileClient.INVALID_COMMAND);
+                } else {
+                    int ret = restoreCorruptReplica(request.params.get(0), request.fileName, request.chunkID);
+                    if (ret < 0) {
+                        response.setError(ret);
+                    }
+                }
+            }
+
+            return WireProtocol.responseFrame(response, frame.streamID);
+        }
+    }
+
     /**
      * Search the remote hostname of new accepted socket on configuration files, to identify
      * the heartbeat connection.
@@ -454,6 +749,7 @@ public class MetaServer {
                     synchronized (fileChunkMap) {
                         fileChunkMap.get(fileName).set(chunk.chunkID, replicas.get(1));
                     }
+                    bumpFileVersion(fileName);
                     // move 3 to 2
                     synchronized (fileChunkMapReplica2) {
                         fileChunkMapReplica2.get(fileName).set(chunk.chunkID, replicas.get(2));
@@ -498,6 +794,39 @@ public class MetaServer {
         }
     }
 
+    /**
+     * Copy a good copy of a chunk over one found corrupt, the file server keeps its place among
+     * the replicas. Copies are tried primary first, the source verifies its data before sending
+     *
+     * @param reporter file server holding the corrupt copy
+     * @param fileName file name
+     * @param chunkID  ID
+     * @return negative if no good copy could be copied
+     */
+    private int restoreCorruptReplica(int reporter, String fileName, int chunkID) {
+        System.out.println("Corrupt replica: " + fileName + " " + chunkID + " on " + reporter);
+
+        List<Integer> copies = new ArrayList<>();
+        copies.add(getPrimaryReplica(fileName, chunkID));
+        List<Integer> replicas = getReplicas(fileName, chunkID);
+        if (replicas != null) {
+            copies.addAll(replicas);
+        }
+
+        for (int source : copies) {
+            if (source < 0 || source == reporter || !checkAvailability(source, fileName, chunkID)) {
+                continue;
+            }
+            if (requestFileServerToMigrateReplica(source, reporter, fileName, chunkID) >= 0) {
+                System.out.println("Restore " + fileName + " " + chunkID + " from " + source + " to " + reporter);
+                return 0;
+            }
+        }
+
+        System.out.println("No good copy of " + fileName + " " + chunkID);
+        return FileClient.CHUNK_NOT_AVAILABLE;
+    }
+
     /**
      * Get the ID of file server that the chunk store
      *
@@ -541,31 +870,18 @@ public class MetaServer {
         }
 
         try {
-            Socket fileSock = new Socket(fileServer.fileServerAddress, fileServer.commandPort);
             RequestEnvelop request = new RequestEnvelop("migrateReplica", fileName);
             request.chunkID = chunkID;
-            request.addParam(Integer.toString(to));
-
-            ObjectOutputStream output = new ObjectOutputStream(fileSock.getOutputStream());
-            output.writeObject(request);
-            output.flush();
+            request.addParam(to);
 
-            ObjectInputStream input = new ObjectInputStream(fileSock.getInputStream());
-            ResponseEnvelop response = (ResponseEnvelop) input.readObject();
-
-            input.close();
+            ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.commandPort, request);
 
             return response.error;
 
         } catch (IOException e) {
             e.printStackTrace();
             return -1;
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            System.exit(-1);
         }
-
-        return 0;
     }
 
     /**
@@ -607,7 +923,7 @@ public class MetaServer {
 
         int newTimes = times + 1;
         System.out.println("ID = " + id + " fail total time: " + newTimes);
-        if (newTimes >= 3) { // heartbeat fail 3 times means file server down
+        if (newTimes >= missedPingsToFail) { // missed pings in a row mean file server down
             System.out.println("ID = " + id + " is down");
             fileServerFail(id);
             newTimes = 0;
@@ -618,36 +934,42 @@ public class MetaServer {
     }
 
     /**
-     * Compare the value in fileServerTouch with current time, if the different exceeds 5 seconds,
-     * the file server fail for one time.
+     * Compare the value in fileServerTouch with current time every ping interval, if the file
+     * server has not pinged within the interval, it fails for one time.
      * This procedure runs forever
      */
     private void keepCheckingLivenessOfHeartbeat() {
+        long lastPrint = 0;
+        // pings delayed by the network or a pause of either side are not counted as missed
+        long missedAfter = pingIntervalMillis + (pingGraceMillis < 0 ? pingIntervalMillis : pingGraceMillis);
         while (true) {
             try {
-                // sleep 5 second first, then run every 5 seconds
-                Thread.sleep(5000);
+                // sleep one interval first, then run every interval
+                Thread.sleep(pingIntervalMillis);
             } catch (InterruptedException e) {
                 e.printStackTrace();
                 continue;
             }
 
-            printFileChunkMap();
-            printReplicaChunkMap();
-
             long currentTime = System.currentTimeMillis();
 
+            if (currentTime - lastPrint >= 5000) {
+                printFileChunkMap();
+                printReplicaChunkMap();
+                lastPrint = currentTime;
+            }
+
             synchronized (fileServerTouch) {
                 for (Map.Entry<Integer, Long> pair : fileServerTouch.entrySet()) {
                     int id = pair.getKey();
                     long lastTouch = pair.getValue();
 
                     long diff = currentTime - lastTouch;
-                    if (diff > 5000) {
+                    if (diff > missedAfter) {
                         System.out.println("File server fail one time: " + id);
                         fileServerHeartbeatFailOneTime(id);
                     } else {
-                        // touched within 5 seconds
+                        // touched within the interval and its grace
                         synchronized (fileServerHeartbeatFailTimes) {
                             fileServerHeartbeatFailTimes.put(id, 0);
                         }
@@ -679,6 +1001,78 @@ public class MetaServer {
         }
     }
 
+    /**
+     * Apply the chunks added, changed or removed since the last report of the file server
+     *
+     * @param id     file server identified by identifyConnection
+     * @param report delta block report
+     * @return false if nothing to apply the delta to, a full report is needed
+     */
+    private boolean applyDelta(int id, BlockReport report) {
+        FileInfo current = fileServerInfoMap.get(id);
+        if (current == null) {
+            return false;
+        }
+
+        for (Map.Entry<String, List<FileChunk>> pair : report.fileInfo.fileChunks.entrySet()) {
+            List<FileChunk> chunks;
+            synchronized (current.fileChunks) {
+                chunks = current.fileChunks.get(pair.getKey());
+                if (chunks == null) {
+                    chunks = Collections.synchronizedList(new ArrayList<FileChunk>());
+                    current.fileChunks.put(pair.getKey(), chunks);
+                }
+            }
+
+            synchronized (chunks) {
+                for (FileChunk chunk : pair.getValue()) {
+                    int index = indexOfChunk(chunks, chunk.chunkID);
+                    if (index < 0) {
+                        chunks.add(chunk);
+                    } else {
+                        chunks.set(index, chunk);
+                    }
+                }
+                Collections.sort(chunks);
+            }
+        }
+
+        for (Map.Entry<String, ArrayList<Integer>> pair : report.removed.entrySet()) {
+            List<FileChunk> chunks = current.fileChunks.get(pair.getKey());
+            if (chunks == null) {
+                continue;
+            }
+
+            synchronized (chunks) {
+                for (Integer chunkID : pair.getValue()) {
+                    int index = indexOfChunk(chunks, chunkID);
+                    if (index >= 0) {
+                        chunks.remove(index);
+                    }
+                }
+            }
+            synchronized (current.fileChunks) {
+                if (chunks.isEmpty()) {
+                    current.fileChunks.remove(pair.getKey());
+                }
+            }
+        }
+
+        synchronized (allFileServerAvail) {
+            allFileServerAvail.put(id, true);
+        }
+        return true;
+    }
+
+    private static int indexOfChunk(List<FileChunk> chunks, int chunkID) {
+        for (int i = 0; i < chunks.size(); i++) {
+            if (chunks.get(i).chunkID == chunkID) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Get replicas arrangement
      *
@@ -711,6 +1105,27 @@ public class MetaServer {
         return replicas;
     }
 
+    /**
+     * Replicas of every chunk, two per chunk in order, -1 where not arranged
+     *
+     * @param fileName  file name
+     * @param chunkList chunk IDs
+     * @return flattened list of replica locations
+     */
+    private LinkedList<Integer> replicaChain(String fileName, List<Integer> chunkList) {
+        LinkedList<Integer> chain = new LinkedList<>();
+        for (Integer chunkID : chunkList) {
+            List<Integer> replicas = getReplicas(fileName, chunkID);
+            if (replicas == null) {
+                chain.add(-1);
+                chain.add(-1);
+            } else {
+                chain.addAll(replicas);
+            }
+        }
+        return chain;
+    }
+
     /**
      * Add replicas for specified file, specified chunk
      *
@@ -776,6 +1191,9 @@ public class MetaServer {
 
         int id;
 
+        // last block report applied on this connection
+        long appliedSeq = WireProtocol.FULL_REPORT_WANTED;
+
         public HeartbeatEntity(int id, Socket fileServerSock) {
             this.id = id;
             this.fileServerSock = fileServerSock;
@@ -784,7 +1202,7 @@ public class MetaServer {
             fileServerHeartbeatFailTimes.put(id, 0);
 
             try {
-                fileServerSock.setSoTimeout(timeoutMillis);
+                fileServerSock.setSoTimeout(reportIntervalMillis * HEARTBEAT_TIMEOUT_INTERVALS);
             } catch (SocketException e) {
                 e.printStackTrace();
             }
@@ -797,23 +1215,27 @@ public class MetaServer {
             while (true) {
 
                 try {
-                    InputStream tcpFlow = fileServerSock.getInputStream();
-                    ObjectInputStream objectInput = new ObjectInputStream(tcpFlow);
+                    BlockReport report = WireProtocol.readBlockReport(fileServerSock.getInputStream());
 
-                    FileInfo fileInfo = (FileInfo) objectInput.readObject();
-
-                    System.out.println("Heartbeat received from " + id);
-
-                    //fileInfo.print();
-                    //System.out.println("fileInfo printed");
+                    System.out.println("Heartbeat received from " + id + (report.full ? ", full " : ", delta ")
+                            + report.size() + " chunks");
 
                     // update file chunk information in meta server
-                    synchronizeWithMap(this.id, fileInfo);
+                    if (report.full) {
+                        synchronizeWithMap(this.id, report.fileInfo);
+                        appliedSeq = report.seq;
+                    } else if (report.baseSeq == appliedSeq && applyDelta(this.id, report)) {
+                        appliedSeq = report.seq;
+                    } else {
+                        // missed a report, or server was declared failed meanwhile
+                        appliedSeq = WireProtocol.FULL_REPORT_WANTED;
+                    }
+                    WireProtocol.writeReportAck(fileServerSock.getOutputStream(), appliedSeq);
 
                     // file server touched meta server
                     fileServerHeartbeatTouch(this.id);
 
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     System.out.println(e.getMessage());
                     break;
                 }
@@ -865,126 +1287,147 @@ public class MetaServer {
     }
 
     /**
-     * Thread to handle single client request
+     * Thread to handle client requests on one connection, connection stays open until client closes it
      */
-    class ResponseFileRequestEntity implements Runnable {
-
-        Socket clientSock;
+    class ResponseFileRequestEntity extends StreamEntity {
 
         public ResponseFileRequestEntity(Socket clientSock) {
-            this.clientSock = clientSock;
+            super(clientSock, clientExecutor);
         }
 
         @Override
-        public void run() {
+        byte[] answer(WireProtocol.Frame frame) throws IOException {
+            return WireProtocol.responseFrame(respond(frame.request()), frame.streamID);
+        }
 
-            try {
+        /**
+         * Plan one client request
+         *
+         * @param request from client
+         * @return response carrying chunks and their locations
+         */
+        private ResponseEnvelop respond(RequestEnvelop request) {
+            String command = request.cmd;
+            String fileName = request.fileName;
 
-                ObjectInputStream input = new ObjectInputStream(clientSock.getInputStream());
-                RequestEnvelop request = (RequestEnvelop) input.readObject();
+            System.out.println(command + "|" + fileName);
+            ResponseEnvelop response = new ResponseEnvelop(request);
 
-                String command = request.cmd;
-                String fileName = request.fileName;
+            if (command.length() > 1) {
 
-                System.out.println(command + "|" + fileName);
-                ResponseEnvelop response = new ResponseEnvelop(request);
-                System.out.println("Response UUID: " + response.uuid.toString());
+                if (command.equals("fetchReplicas")) {
+                    String fileReplica = request.fileName;
+                    int chunkIDReplica = request.chunkID;
 
-                if (command.length() > 1) {
+                    List<Integer> replicas = getReplicas(fileReplica, chunkIDReplica);
 
-                    if (command.equals("fetchReplicas")) {
-                        String fileReplica = request.fileName;
-                        int chunkIDReplica = request.chunkID;
+                    if (replicas != null) {
+                        response.chunksLocation = new LinkedList<>(replicas);
+                    } else {
+                        response.setError(-1);
+                    }
+                }
 
-                        List<Integer> replicas = getReplicas(fileReplica, chunkIDReplica);
+            } else {
 
-                        if (replicas != null) {
-                            response.chunksLocation = new LinkedList<>(replicas);
-                        } else {
-                            response.setError(-1);
-                        }
-                    }
+                char cmd = command.charAt(0);
+                int error = 0;
+                Integer offset;
+                Integer length;
+                LinkedList<Integer> chunkList = new LinkedList<>();
+                LinkedList<Integer> chunkLocationList = new LinkedList<>();
+                LinkedList<Integer> chunkReplicaList = new LinkedList<>();
 
-                } else {
+                // taken before reading locations, a change meanwhile makes the answer look older, not newer
+                response.version = fileVersion(fileName);
 
-                    char cmd = command.charAt(0);
-                    int error = 0;
-                    Integer offset;
-                    Integer length;
-                    LinkedList<Integer> chunkList = new LinkedList<>();
-                    LinkedList<Integer> chunkLocationList = new LinkedList<>();
-
-                    switch (cmd) {
-                        case 'r':
-                            // TODO read file
-                            if (request.params.size() != 2) {
-                                error = FileClient.INVALID_COMMAND;
-                                break;
-                            }
-                            offset = Integer.valueOf(request.params.get(0));
-                            length = Integer.valueOf(request.params.get(1));
-
-                            error = read(fileName, offset, length, chunkList, chunkLocationList);
+                switch (cmd) {
+                    case 'r':
+                        // TODO read file
+                        if (request.params.size() != 2) {
+                            error = FileClient.INVALID_COMMAND;
+                            break;
+                        }
+                        offset = request.params.get(0);
+                        length = request.params.get(1);
 
+                        error = read(fileName, offset, length, chunkList, chunkLocationList, chunkReplicaList);
+
+                        break;
+                    case 'a':
+                        // TODO append file
+                        if (request.params.size() != 1) {
+                            error = FileClient.INVALID_COMMAND;
                             break;
-                        case 'a':
-                            // TODO append file
-                            if (request.params.size() != 1) {
-                                error = FileClient.INVALID_COMMAND;
-                                break;
-                            }
-                            length = Integer.valueOf(request.params.get(0));
-
-                            int offseta = append(fileName, length, chunkList, chunkLocationList);
-                            if (offseta >= 0) {
-                                response.addParam(Integer.toString(offseta % FileChunk.FIXED_SIZE)); // offset
-                            }
+                        }
+                        length = request.params.get(0);
 
+                        int offseta = append(fileName, length, chunkList, chunkLocationList);
+                        if (offseta >= 0) {
+                            response.addParam(offseta % FileChunk.FIXED_SIZE); // offset
+                        }
+
+                        break;
+                    case 'w':
+                        // TODO write file
+                        if (request.params.size() != 1) {
+                            error = FileClient.INVALID_COMMAND;
                             break;
-                        case 'w':
-                            // TODO write file
-                            if (request.params.size() != 1) {
-                                error = FileClient.INVALID_COMMAND;
-                                break;
-                            }
+                        }
 
-                            length = Integer.valueOf(request.params.get(0));
+                        length = request.params.get(0);
 
-                            error = write(fileName, length, chunkList, chunkLocationList);
+                        error = write(fileName, length, chunkList, chunkLocationList);
 
+                        break;
+                    case 'n':
+                        if (request.params.size() != 1) {
+                            error = FileClient.INVALID_COMMAND;
                             break;
-                        case 'd':
-                            // TODO delete file
-                            boolean deleted = delete(fileName);
-                            if (!deleted) {
-                                error = FileClient.FILE_NOT_EXIST;
-                            }
+                        }
 
-                            break;
-                        default:
-                            error = FileClient.INVALID_COMMAND;
-                            System.out.println("Unknown command: " + cmd);
-                    }
+                        error = allocate(fileName, request.params.get(0), chunkList, chunkLocationList);
 
-                    if (error < 0) {
-                        response.setError(error);
-                    } else {
-                        response.setChunksToScan(chunkList);
-                        response.setChunksLocation(chunkLocationList);
-                    }
-                    System.out.println("Number of chunks affected: " + chunkList.size());
-                }
+                        break;
+                    case 'l':
+                        error = locate(fileName, chunkList, chunkLocationList, chunkReplicaList);
+                        if (error >= 0) {
+                            // with all other chunks full, client knows the length of the file
+                            response.addParam(lastChunkLength(fileName));
+                        }
+
+                        break;
+                    case 'd':
+                        // TODO delete file
+                        boolean deleted = delete(fileName);
+                        if (!deleted) {
+                            error = FileClient.FILE_NOT_EXIST;
+                        }
 
-                ObjectOutputStream output = new ObjectOutputStream(clientSock.getOutputStream());
-                output.writeObject(response);
-                output.flush();
-                output.close();
+                        break;
+                    default:
+                        error = FileClient.INVALID_COMMAND;
+                        System.out.println("Unknown command: " + cmd);
+                }
 
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
+                if (error < 0) {
+                    response.setError(error);
+                } else {
+                    response.setChunksToScan(chunkList);
+                    response.setChunksLocation(chunkLocationList);
+                    if (cmd == 'w' || cmd == 'a' || cmd == 'n') {
+                        // client pushes data along primary -> replica 2 -> replica 3
+                        response.chunksReplicas = replicaChain(fileName, chunkList);
+                    }
+                    if (cmd == 'r' || cmd == 'l') {
+                        // client reads from any of them
+                        response.chunksReplicas = chunkReplicaList;
+                    }
+                }
+                System.out.println("Number of chunks affected: " + chunkList.size());
             }
 
-            System.out.println("Exit response to: " + clientSock.getInetAddress().toString());
+            return response;
         }
 
     }
@@ -997,11 +1440,14 @@ public class MetaServer {
      * @param length            to read
      * @param chunkList         to store chunks to scan
      * @param chunkLocationList to store location of chunks correspondent to chunkList
+     * @param chunkReplicaList  to store readable replicas, two per chunk, -1 where none
      * @return error code
      */
-    private int read(String fileName, int offset, int length, List<Integer> chunkList, List<Integer> chunkLocationList) {
+    private int read(String fileName, int offset, int length, List<Integer> chunkList, List<Integer> chunkLocationList,
+                     List<Integer> chunkReplicaList) {
         chunkList.clear();
         chunkLocationList.clear();
+        chunkReplicaList.clear();
 
         if (!fileChunkMap.containsKey(fileName)) {
             return FileClient.FILE_NOT_EXIST;
@@ -1027,9 +1473,12 @@ public class MetaServer {
                 return FileClient.FILE_LENGTH_EXCEED;
             }
             int location = list.get(chunkID);
-            if (!checkAvailability(location, fileName, chunkID)) {
+            List<Integer> replicas = readableReplicas(location, fileName, chunkID);
+            // primary being down is fine as long as a replica has the chunk
+            if (!checkAvailability(location, fileName, chunkID) && replicas.get(0) < 0 && replicas.get(1) < 0) {
                 return FileClient.CHUNK_NOT_AVAILABLE;
             }
+            chunkReplicaList.addAll(replicas);
         }
 
         // get chunk list and location
@@ -1042,6 +1491,114 @@ public class MetaServer {
         return FileClient.SUCCESS;
     }
 
+    /**
+     * Allocate the next chunk of a file written by an output stream, one chunk at a time as
+     * data arrives instead of all chunks up front
+     *
+     * @param fileName          file name
+     * @param chunkID           chunk to allocate, must follow the last chunk, 0 creates the file, overwriting it
+     * @param chunkList         to store the chunk ID
+     * @param chunkLocationList to store the primary of the chunk
+     * @return error code
+     */
+    private int allocate(String fileName, int chunkID, List<Integer> chunkList, List<Integer> chunkLocationList) {
+        chunkList.clear();
+        chunkLocationList.clear();
+
+        if (chunkID == 0) {
+            // overwrite
+            if (fileChunkMap.containsKey(fileName)) {
+                delete(fileName);
+            }
+            synchronized (fileChunkMap) {
+                fileChunkMap.put(fileName, Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+        }
+
+        List<Integer> list = fileChunkMap.get(fileName);
+        if (list == null) {
+            return FileClient.FILE_NOT_EXIST;
+        }
+
+        // only distribute to available file servers
+        ArrayList<Integer> availFileServers = new ArrayList<>();
+        for (Integer key : allFileServerList.keySet()) {
+            if (allFileServerAvail.containsKey(key) && allFileServerAvail.get(key)) {
+                availFileServers.add(key);
+            }
+        }
+        if (availFileServers.isEmpty()) {
+            return FileClient.FILE_SERVER_NOT_AVAILABLE;
+        }
+        int location = availFileServers.get(random.nextInt(availFileServers.size()));
+
+        synchronized (list) {
+            if (list.size() != chunkID) {
+                // another writer got in between
+                return FileClient.CAUSAL_ORDERING_VIOLATED;
+            }
+            list.add(location);
+        }
+
+        List<Integer> replicas = loadBalancer.getReplicas(location);
+        if (replicas != null) {
+            addToReplicaList(fileName, chunkID, replicas);
+        }
+        bumpFileVersion(fileName);
+
+        chunkList.add(chunkID);
+        chunkLocationList.add(location);
+        return FileClient.SUCCESS;
+    }
+
+    /**
+     * Locations of all chunks of the file, for clients to cache
+     *
+     * @param fileName          file to locate
+     * @param chunkList         to store all chunk IDs
+     * @param chunkLocationList to store location of chunks correspondent to chunkList
+     * @param chunkReplicaList  to store readable replicas, two per chunk, -1 where none
+     * @return error code
+     */
+    private int locate(String fileName, List<Integer> chunkList, List<Integer> chunkLocationList,
+                       List<Integer> chunkReplicaList) {
+        chunkList.clear();
+        chunkLocationList.clear();
+        chunkReplicaList.clear();
+
+        List<Integer> list = fileChunkMap.get(fileName);
+        if (list == null) {
+            return FileClient.FILE_NOT_EXIST;
+        }
+
+        synchronized (list) {
+            for (int chunkID = 0; chunkID < list.size(); chunkID++) {
+                chunkList.add(chunkID);
+                chunkLocationList.add(list.get(chunkID));
+                chunkReplicaList.addAll(readableReplicas(list.get(chunkID), fileName, chunkID));
+            }
+        }
+        return FileClient.SUCCESS;
+    }
+
+    /**
+     * @param fileName file
+     * @return current metadata version of the file, 0 if no such file
+     */
+    private long fileVersion(String fileName) {
+        Long version = fileVersions.get(fileName);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * Chunks of the file or their locations changed, locations cached by clients are stale
+     *
+     * @param fileName file
+     */
+    private void bumpFileVersion(String fileName) {
+        fileVersions.put(fileName, versionSeries.incrementAndGet());
+    }
+
     /**
      * Check whether last chunk of file is full
      *
@@ -1173,6 +1730,7 @@ public class MetaServer {
         synchronized (fileChunkMap) {
             fileChunkMap.put(fileName, list);
         }
+        bumpFileVersion(fileName);
 
         return FileClient.SUCCESS;
     }
@@ -1210,6 +1768,9 @@ public class MetaServer {
             chunkLocationList.add(getLocationOfLastChunkOfFile(fileName));
         }
 
+        // last chunk grows at least
+        bumpFileVersion(fileName);
+
         int dataRemain = length - lastRemain;
         if (dataRemain <= 0) {
             // all data arranged
@@ -1253,6 +1814,7 @@ public class MetaServer {
                 list.add(locationItor.next());
             }
         }
+        bumpFileVersion(fileName);
 
         // arrange replicas
         chunkItor = chunkList.iterator();
@@ -1315,19 +1877,13 @@ public class MetaServer {
             RequestEnvelop request = new RequestEnvelop("d", fileName);
 
             try {
-                Socket fileSock = new Socket(fileServer.fileServerAddress, fileServer.requestFilePort);
-                ObjectOutputStream output = new ObjectOutputStream(fileSock.getOutputStream());
-                output.writeObject(request);
-                output.flush();
-
-                ObjectInputStream input = new ObjectInputStream(fileSock.getInputStream());
-                ResponseEnvelop response = (ResponseEnvelop) input.readObject();
+                ResponseEnvelop response = connectionPool.exchange(fileServer.fileServerAddress, fileServer.requestFilePort, request);
 
                 if (response.params != null && response.params.size() > 0) {
-                    affected += Integer.valueOf(response.params.get(0));
+                    affected += response.params.get(0);
                 }
 
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
                 return false;
             }
@@ -1343,6 +1899,7 @@ public class MetaServer {
         synchronized (fileChunkMapReplica3) {
             fileChunkMapReplica3.remove(fileName);
         }
+        fileVersions.remove(fileName);
 
         System.out.println(String.format("%s: %d chunks deleted", fileName, affected));
         return true;
@@ -1392,22 +1949,81 @@ public class MetaServer {
      * @return true if available, false otherwise
      */
     private boolean checkAvailability(int id, String fileName, int chunkID) {
+        return reportedChunk(id, fileName, chunkID) != null;
+    }
+
+    /**
+     * @param id       file server
+     * @param fileName file name
+     * @param chunkID  ID
+     * @return chunk as last reported by the file server, null if not reported
+     */
+    private FileChunk reportedChunk(int id, String fileName, int chunkID) {
         FileInfo fileInfo = fileServerInfoMap.get(id);
         if (fileInfo == null) {
-            return false;
+            return null;
         }
 
         List<FileChunk> chunkList = fileInfo.fileChunks.get(fileName);
         if (chunkList == null) {
-            return false;
+            return null;
         }
 
         for (FileChunk chunk : chunkList) {
             if (chunk.chunkID == chunkID) {
-                return true;
+                return chunk;
             }
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * @param fileName file name
+     * @return actual length of last chunk of file as reported by one of its copies, -1 if none reported it
+     */
+    private int lastChunkLength(String fileName) {
+        List<Integer> list = fileChunkMap.get(fileName);
+        if (list == null || list.isEmpty()) {
+            return -1;
+        }
+
+        int chunkID = list.size() - 1;
+        List<Integer> copies = new ArrayList<>();
+        copies.add(list.get(chunkID));
+        copies.addAll(readableReplicas(list.get(chunkID), fileName, chunkID));
+        for (Integer copy : copies) {
+            FileChunk chunk = copy < 0 ? null : reportedChunk(copy, fileName, chunkID);
+            if (chunk != null) {
+                return chunk.actualLength;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replicas of a chunk able to serve reads. A replica must have reported the chunk at least as
+     * long as primary did, so a replica still catching up on an append is not read
+     *
+     * @param primary  file server of primary
+     * @param fileName file name
+     * @param chunkID  ID
+     * @return replica 2 and replica 3, -1 for one not readable
+     */
+    private List<Integer> readableReplicas(int primary, String fileName, int chunkID) {
+        List<Integer> readable = new ArrayList<>(2);
+        List<Integer> replicas = getReplicas(fileName, chunkID);
+        FileChunk primaryChunk = reportedChunk(primary, fileName, chunkID);
+
+        for (int i = 0; i < 2; i++) {
+            int replica = replicas == null ? -1 : replicas.get(i);
+            FileChunk replicaChunk = replica < 0 ? null : reportedChunk(replica, fileName, chunkID);
+            if (replicaChunk == null
+                    || (primaryChunk != null && replicaChunk.actualLength < primaryChunk.actualLength)) {
+                replica = -1;
+            }
+            readable.add(replica);
+        }
+        return readable;
     }
 
     /**
@@ -1427,6 +2043,10 @@ public class MetaServer {
         }
 
         loadBalancer = new LoadBalancer(this);
+
+        clientExecutor = new EndpointExecutor("meta-client", clientConcurrency, idleThreadMillis);
+        ackExecutor = new EndpointExecutor("meta-ack", ackConcurrency, idleThreadMillis);
+        replicaExecutor = new EndpointExecutor("meta-replica", replicaConcurrency, idleThreadMillis);
     }
 
     /**
@@ -1439,6 +2059,8 @@ public class MetaServer {
 
         prepareToReceiveHeartbeat();
 
+        prepareToReceivePing();
+
         prepareToReceiveACK();
 
         prepareToReceiveClientRequest();
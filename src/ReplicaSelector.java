@@ -0,0 +1,176 @@
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Orders the copies of a chunk for reading. File servers on this host come first, then the one
+ * with the fewest reads of this client in flight, so reads spread over primaries and replicas
+ * instead of all going to primaries. Copies with the same rank are rotated between calls.
+ * Also keeps the latencies of recent reads of every file server, to tell when a read is late.
+ */
+public class ReplicaSelector {
+    // latencies kept per file server
+    public static final int LATENCY_WINDOW = 128;
+    // fewer samples than this are not enough for a percentile
+    public static final int MIN_LATENCY_SAMPLES = 16;
+
+    /**
+     * Latencies of the most recent reads of one file server
+     */
+    static class LatencyWindow {
+        private final long[] micros = new long[LATENCY_WINDOW];
+        private int count = 0;
+        private int next = 0;
+
+        synchronized void add(long latencyMicros) {
+            micros[next] = latencyMicros;
+            next = (next + 1) % micros.length;
+            count = Math.min(count + 1, micros.length);
+        }
+
+        /**
+         * @param percentile 1 to 100
+         * @return latency in microseconds, -1 if too few samples
+         */
+        synchronized long percentile(int percentile) {
+            if (count < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(micros, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))];
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    // file server ID -> reads in flight
+    private final ConcurrentHashMap<Integer, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    // file servers running on this host
+    private final Set<Integer> localServers = new HashSet<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * @param fileServers all file servers, addresses resolved
+     */
+    public ReplicaSelector(Map<Integer, FileServer> fileServers) {
+        for (Map.Entry<Integer, FileServer> pair : fileServers.entrySet()) {
+            if (isLocal(pair.getValue().fileServerAddress)) {
+                localServers.add(pair.getKey());
+            }
+        }
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        if (address == null) {
+            return false;
+        }
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param copies file server IDs holding the chunk, -1 and duplicates are skipped
+     * @return copies to try in order
+     */
+    public List<Integer> order(List<Integer> copies) {
+        List<Integer> ordered = new ArrayList<>(copies.size());
+        for (Integer copy : copies) {
+            if (copy >= 0 && !ordered.contains(copy)) {
+                ordered.add(copy);
+            }
+        }
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+
+        Collections.rotate(ordered, (rotation.getAndIncrement() & Integer.MAX_VALUE) % ordered.size());
+        // loads keep changing, sort on a snapshot
+        final Map<Integer, Integer> loads = new HashMap<>();
+        for (Integer copy : ordered) {
+            loads.put(copy, load(copy));
+        }
+        // stable, rotation decides among equals
+        Collections.sort(ordered, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                boolean localA = localServers.contains(a);
+                boolean localB = localServers.contains(b);
+                if (localA != localB) {
+                    return localA ? -1 : 1;
+                }
+                return Integer.compare(loads.get(a), loads.get(b));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * @param id file server ID
+     * @return reads in flight
+     */
+    public int load(int id) {
+        AtomicInteger count = inFlight.get(id);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Count a read sent to file server
+     *
+     * @param id file server ID
+     */
+    public void begin(int id) {
+        AtomicInteger count = inFlight.get(id);
+        if (count == null) {
+            inFlight.putIfAbsent(id, new AtomicInteger());
+            count = inFlight.get(id);
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Count a read finished, successful or not
+     *
+     * @param id file server ID
+     */
+    public void end(int id) {
+        AtomicInteger count = inFlight.get(id);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * Keep latency of a successful read
+     *
+     * @param id            file server ID
+     * @param latencyMicros from request sent to data received
+     */
+    public void recordLatency(int id, long latencyMicros) {
+        LatencyWindow window = latencies.get(id);
+        if (window == null) {
+            latencies.putIfAbsent(id, new LatencyWindow());
+            window = latencies.get(id);
+        }
+        window.add(latencyMicros);
+    }
+
+    /**
+     * @param id         file server ID
+     * @param percentile 1 to 100
+     * @return latency of recent reads of file server in microseconds, -1 if not known yet
+     */
+    public long latencyPercentile(int id, int percentile) {
+        LatencyWindow window = latencies.get(id);
+        return window == null ? -1 : window.percentile(percentile);
+    }
+}
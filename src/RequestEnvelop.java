@@ -1,15 +1,11 @@
-import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.UUID;
 
-public class RequestEnvelop implements Serializable {
+public class RequestEnvelop {
     String cmd;
     String fileName;
     int chunkID;
-    ArrayList<String> params;
-    char[] data;
-
-    final UUID uuid;
+    ArrayList<Integer> params;
+    byte[] data;
 
     public RequestEnvelop(String cmd, String fileName) {
         this.cmd = cmd;
@@ -17,26 +13,24 @@ public class RequestEnvelop implements Serializable {
         this.params = new ArrayList<>();
         this.data = null;
         this.chunkID = 0;
-        this.uuid = UUID.randomUUID();
     }
 
     public RequestEnvelop(RequestEnvelop request) {
-        this(request.cmd, request.fileName, request.chunkID, request.params, request.uuid);
+        this(request.cmd, request.fileName, request.chunkID, request.params);
     }
 
-    private RequestEnvelop(String cmd, String fileName, int chunkID, ArrayList<String> params, UUID uuid) {
+    RequestEnvelop(String cmd, String fileName, int chunkID, ArrayList<Integer> params) {
         this.cmd = cmd;
         this.fileName = fileName;
         this.chunkID = chunkID;
         this.params = params;
-        this.uuid = uuid;
     }
 
-    public void addParam(String param) {
+    public void addParam(int param) {
         params.add(param);
     }
 
-    public void setData(char[] data) {
+    public void setData(byte[] data) {
         this.data = data;
     }
 }
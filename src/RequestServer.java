@@ -0,0 +1,495 @@
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based request server. One selector thread accepts connections and reads
+ * request frames from all of them, a bounded pool of workers executes the requests
+ * (disk IO, replication), and responses are written back by the selector thread.
+ * <p>
+ * An idle keep-alive connection costs no thread, and a slow request only holds one worker.
+ * Requests of one connection are executed concurrently and each response carries the stream
+ * ID of its request, so responses are written in completion order. Reading from a connection
+ * pauses while it has the max number of requests in flight. A handler waiting for another
+ * server defers its answer, so the wait holds no worker.
+ */
+public class RequestServer {
+    public static final int DEFAULT_WORKER_THREADS = 16;
+    public static final int DEFAULT_WORKER_QUEUE_SIZE = 256;
+    public static final int DEFAULT_MAX_STREAMS_PER_CONNECTION = 64;
+
+    /**
+     * Executes one request on a worker thread
+     */
+    interface Handler {
+        ResponseEnvelop respond(RequestEnvelop request);
+    }
+
+    // reply of the request whose handler runs on the current worker, null on other threads
+    private static final ThreadLocal<Reply> CURRENT = new ThreadLocal<>();
+
+    int workerThreads = DEFAULT_WORKER_THREADS;
+    // requests waiting for a worker, more than this and requests are rejected as busy
+    int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+    // requests of one connection executing or waiting for a worker
+    int maxStreamsPerConnection = DEFAULT_MAX_STREAMS_PER_CONNECTION;
+
+    // agreed with clients in HELLO, compresses responses
+    FrameCompressor compressor = new FrameCompressor();
+
+    final String name;
+    Selector selector;
+    ExecutorService workers;
+
+    // connections whose response is queued, selector thread picks them up after wakeup
+    final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    public RequestServer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Build server from optional &lt;requestServer&gt; element of XML config
+     *
+     * @param name       used to name threads
+     * @param serverNode element, may be null
+     * @return server with defaults overridden by config
+     */
+    public static RequestServer fromConfig(String name, Node serverNode) {
+        RequestServer server = new RequestServer(name);
+        if (serverNode == null) {
+            return server;
+        }
+
+        NodeList serverConfig = serverNode.getChildNodes();
+        for (int j = 0; j < serverConfig.getLength(); j++) {
+            Node oneConfig = serverConfig.item(j);
+            if (oneConfig.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+
+            String nodeName = oneConfig.getNodeName();
+            String text = oneConfig.getTextContent().trim();
+            if (nodeName.equals("workerThreads")) {
+                server.workerThreads = Integer.parseInt(text);
+            }
+            if (nodeName.equals("workerQueueSize")) {
+                server.workerQueueSize = Integer.parseInt(text);
+            }
+            if (nodeName.equals("maxStreamsPerConnection")) {
+                server.maxStreamsPerConnection = Integer.parseInt(text);
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Listen on a port, must be called before start
+     *
+     * @param port    local port
+     * @param handler executes requests arriving on this port
+     * @return actual local port
+     * @throws IOException if port can not be bound
+     */
+    public int listen(int port, Handler handler) throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT, handler);
+
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Start worker pool and selector thread
+     */
+    public void start() {
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueSize), new ThreadFactory() {
+            int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-worker-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Thread selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, name + "-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    private void selectLoop() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            Connection pending;
+            while ((pending = pendingWrites.poll()) != null) {
+                pending.flush();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(key);
+                    continue;
+                }
+
+                Connection conn = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    conn.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    conn.flush();
+                }
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) {
+        try {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel == null) {
+                return;
+            }
+            System.out.println("Receive request from: " + channel.socket().getInetAddress().toString());
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel, (Handler) key.attachment());
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answer the request whose handler runs on the current worker later, from any thread. The
+     * response the handler returns is dropped, the request is answered by complete instead, so
+     * the worker is free while the answer waits for another server
+     *
+     * @return reply to complete once
+     * @throws IllegalStateException if not called by a handler
+     */
+    static Reply defer() {
+        Reply reply = CURRENT.get();
+        if (reply == null) {
+            throw new IllegalStateException("defer outside of a handler");
+        }
+        reply.deferred = true;
+        return reply;
+    }
+
+    /**
+     * Answer of one request, sent by the worker or by whoever the handler deferred it to
+     */
+    static class Reply {
+        final Connection connection;
+        final int streamID;
+        boolean deferred = false;
+
+        Reply(Connection connection, int streamID) {
+            this.connection = connection;
+            this.streamID = streamID;
+        }
+
+        /**
+         * Send the response, the request is no longer in flight
+         *
+         * @param response to send back
+         */
+        void complete(ResponseEnvelop response) {
+            connection.respond(response, streamID);
+        }
+    }
+
+    /**
+     * State of one accepted connection, read side is only touched by selector thread
+     */
+    class Connection {
+        final SocketChannel channel;
+        final Handler handler;
+        SelectionKey key;
+
+        final ByteBuffer header = ByteBuffer.allocate(WireProtocol.HEADER_SIZE);
+        WireProtocol.Frame frame;
+        ByteBuffer body;
+
+        // encoded responses and file payloads read in memory, not yet written, guarded by itself
+        final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+        // requests dispatched but not yet answered
+        final AtomicInteger inFlight = new AtomicInteger();
+        // set once compression is agreed in HELLO
+        volatile FrameCompressor agreed;
+
+        Connection(SocketChannel channel, Handler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * Read as much of the current frame as available, dispatch it once complete
+         */
+        void onReadable() {
+            try {
+                if (body == null) {
+                    if (channel.read(header) < 0) {
+                        close();
+                        return;
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    header.flip();
+                    frame = WireProtocol.readHeader(header);
+                    body = ByteBuffer.allocate(frame.bodyLength);
+                }
+
+                if (body.hasRemaining() && channel.read(body) < 0) {
+                    close();
+                    return;
+                }
+                if (body.hasRemaining()) {
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                close();
+                return;
+            }
+
+            final WireProtocol.Frame request = frame;
+            request.body = body.array();
+            frame = null;
+            body = null;
+            header.clear();
+
+            if (request.isHello()) {
+                hello(request);
+                return;
+            }
+
+            if (inFlight.incrementAndGet() >= maxStreamsPerConnection) {
+                updateInterest();
+            }
+            dispatch(request);
+        }
+
+        /**
+         * Answer HELLO with the features both sides support
+         *
+         * @param hello frame from client
+         */
+        private void hello(WireProtocol.Frame hello) {
+            try {
+                int features = compressor.agree(hello.hello());
+                if ((features & WireProtocol.FEATURE_DEFLATE) != 0) {
+                    agreed = compressor;
+                }
+                send(WireProtocol.helloFrame(features, hello.streamID), null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        private void dispatch(final WireProtocol.Frame request) {
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(request);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    ResponseEnvelop response = new ResponseEnvelop(request.request());
+                    response.setError(FileClient.FILE_SERVER_NOT_AVAILABLE);
+                    inFlight.decrementAndGet();
+                    send(WireProtocol.responseFrame(response, request.streamID), null);
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Decode and execute one request, runs on worker thread
+         *
+         * @param frame request frame
+         */
+        private void process(WireProtocol.Frame frame) {
+            RequestEnvelop request;
+            try {
+                request = frame.request();
+            } catch (IOException e) {
+                // stream is out of step, nothing sensible to answer
+                e.printStackTrace();
+                close();
+                return;
+            }
+
+            Reply reply = new Reply(this, frame.streamID);
+            ResponseEnvelop response;
+            CURRENT.set(reply);
+            try {
+                response = handler.respond(request);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                response = new ResponseEnvelop(request);
+                response.setError(FileClient.INVALID_COMMAND);
+            } finally {
+                CURRENT.remove();
+            }
+
+            if (!reply.deferred) {
+                reply.complete(response);
+            }
+        }
+
+        /**
+         * Encode and queue the response of one request
+         *
+         * @param response to send back
+         * @param streamID of the request
+         */
+        void respond(ResponseEnvelop response, int streamID) {
+            inFlight.decrementAndGet();
+            try {
+                FileRegion region = response.region;
+                if (region != null) {
+                    // file payload is sent as it is, read here so that selector thread only writes memory
+                    byte[] head = WireProtocol.responseFrameHead(response, streamID, (int) region.remaining);
+                    send(head, region.load());
+                } else {
+                    byte[] encoded = WireProtocol.responseFrame(response, streamID);
+                    FrameCompressor compressing = agreed;
+                    if (compressing != null) {
+                        encoded = compressing.compress(encoded);
+                    }
+                    send(encoded, null);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (response.region != null) {
+                    response.region.close();
+                }
+                close();
+            }
+        }
+
+        /**
+         * Queue an encoded response and let selector thread write it
+         *
+         * @param frame   whole frame, or frame up to the payload if payload is given
+         * @param payload file payload read in memory, may be null
+         */
+        void send(byte[] frame, ByteBuffer payload) {
+            synchronized (outbound) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                outbound.addLast(ByteBuffer.wrap(frame));
+                if (payload != null) {
+                    outbound.addLast(payload);
+                }
+            }
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Write queued responses without blocking. Runs on selector thread
+         */
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            try {
+                synchronized (outbound) {
+                    while (!outbound.isEmpty()) {
+                        ByteBuffer buffer = outbound.peekFirst();
+                        channel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            // socket buffer full
+                            break;
+                        }
+                        outbound.pollFirst();
+                    }
+                }
+                updateInterest();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Read while under in-flight limit, wait for writable while responses are queued.
+         * Runs on selector thread
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            int ops = 0;
+            if (inFlight.get() < maxStreamsPerConnection) {
+                ops |= SelectionKey.OP_READ;
+            }
+            synchronized (outbound) {
+                if (!outbound.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            synchronized (outbound) {
+                outbound.clear();
+            }
+        }
+    }
+}
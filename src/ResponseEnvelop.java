@@ -1,20 +1,24 @@
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.UUID;
 
-public class ResponseEnvelop implements Serializable {
+public class ResponseEnvelop {
     RequestEnvelop requestCopy;
     int error;
 
-    UUID uuid = UUID.randomUUID();
-
-    ArrayList<String> params;
+    ArrayList<Integer> params;
 
     LinkedList<Integer> chunksToScan;
     LinkedList<Integer> chunksLocation;
+    // write and append only, the two replica locations of every chunk in chunksToScan, in order
+    LinkedList<Integer> chunksReplicas;
+
+    byte[] data;
+
+    // metadata version of the file when meta server answered, clients cache locations by it
+    long version;
 
-    char[] data;
+    // payload streamed from file instead of data, only local to file server
+    FileRegion region;
 
     public void setChunksToScan(LinkedList<Integer> chunksToScan) {
         this.chunksToScan = chunksToScan;
@@ -37,17 +41,18 @@ public class ResponseEnvelop implements Serializable {
         this.data = null;
         this.chunksToScan = null;
         this.chunksLocation = null;
+        this.chunksReplicas = null;
     }
 
     public void setChunksLocation(LinkedList<Integer> chunksLocation) {
         this.chunksLocation = chunksLocation;
     }
 
-    public void setData(char[] data) {
+    public void setData(byte[] data) {
         this.data = data;
     }
 
-    public void addParam(String param) {
+    public void addParam(int param) {
         if (params == null) {
             params = new ArrayList<>();
         }
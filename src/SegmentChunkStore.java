@@ -0,0 +1,695 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured store. Every version of a chunk is appended as one record to the active
+ * segment, a large file preallocated when created, so writes are sequential and the number of
+ * files does not grow with the number of chunks. An index in memory points every chunk at its
+ * latest record; on recovery it is rebuilt by scanning the segments, highest sequence number
+ * wins. Appends write a new version of the whole chunk, deletes write a tombstone. A background
+ * thread copies the live records of mostly dead segments to the active segment and deletes them.
+ * A record carries the block checksums of its data, its header has a CRC-32C of its own.
+ */
+public class SegmentChunkStore implements ChunkStore {
+    public static final int DEFAULT_SEGMENT_SIZE_MB = 64;
+    public static final int DEFAULT_COMPACT_LIVE_PERCENT = 50;
+    public static final int DEFAULT_COMPACT_INTERVAL_MILLIS = 10000;
+
+    static final String SEGMENT_DIR = "segments";
+    // records written before block checksums, header and data covered by one CRC-32
+    static final int MAGIC = 0x44465347;
+    // header, file name and block checksums covered by one CRC-32C, data by the block checksums
+    static final int MAGIC_CHECKSUMS = 0x44465343;
+    // magic, sequence number, chunk ID, length, file name length
+    static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 2;
+    static final int CRC_SIZE = 4;
+    static final int MAX_NAME_BYTES = 4096;
+    // length of a tombstone
+    static final int DELETED = -1;
+
+    final File dir;
+    int segmentSizeMB = DEFAULT_SEGMENT_SIZE_MB;
+    // sealed segments with less live data than this are compacted
+    int compactLivePercent = DEFAULT_COMPACT_LIVE_PERCENT;
+    int compactIntervalMillis = DEFAULT_COMPACT_INTERVAL_MILLIS;
+
+    /**
+     * One segment file
+     */
+    static class Segment {
+        final int id;
+        final File file;
+        private FileChannel channel;
+        // end of last record
+        long writePosition = 0;
+        // bytes of the records the index points to
+        long liveBytes = 0;
+        // lowest sequence number of a record in segment
+        long minSeq = Long.MAX_VALUE;
+        private boolean dropped = false;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        /**
+         * @return open channel, opened again if an interrupted reader closed it
+         * @throws IOException if segment is compacted or can not be opened
+         */
+        synchronized FileChannel channel() throws IOException {
+            if (dropped) {
+                throw new ClosedChannelException();
+            }
+            if (channel == null || !channel.isOpen()) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        /**
+         * Close and delete segment once compacted
+         */
+        synchronized boolean isDropped() {
+            return dropped;
+        }
+
+        synchronized void drop() {
+            dropped = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!file.delete()) {
+                System.out.println("Can not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Place of one version of a chunk
+     */
+    static class Record {
+        final String fileName;
+        final int chunkID;
+        final long seq;
+        // bytes of data, DELETED for a tombstone
+        final int length;
+        final Segment segment;
+        // start of record in segment
+        final long offset;
+        // bytes of record, header and data
+        final int size;
+        // null for a tombstone
+        final ChunkChecksums checksums;
+
+        Record(String fileName, int chunkID, long seq, int length, Segment segment, long offset, int size,
+               ChunkChecksums checksums) {
+            this.fileName = fileName;
+            this.chunkID = chunkID;
+            this.seq = seq;
+            this.length = length;
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.checksums = checksums;
+        }
+
+        long dataOffset() {
+            return offset + size - Math.max(length, 0);
+        }
+    }
+
+    // segment ID -> segment, oldest first
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    // created on first write after recovery, never appended after a torn record
+    private Segment active;
+    private int nextSegmentID = 0;
+    private long seq = 0;
+    // chunk key -> latest record, tombstones are not kept
+    private final HashMap<String, Record> index = new HashMap<>();
+    // segments written since last sync
+    private final Set<Segment> unsynced = new HashSet<>();
+    // a segment file was created since last sync
+    private boolean segmentCreated = false;
+    // held through a sync, so that a sync returns only once records written before it are on disk
+    private final Object syncLock = new Object();
+
+    long compactions = 0;
+    long reclaimedBytes = 0;
+
+    /**
+     * @param storageDir storage directory of file server, segments go in a directory inside
+     */
+    public SegmentChunkStore(String storageDir) {
+        this.dir = new File(storageDir, SEGMENT_DIR);
+    }
+
+    private static String key(String fileName, int chunkID) {
+        return fileName + "/" + chunkID;
+    }
+
+    @Override
+    public void recover(FileInfo fileInfo) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Can not create " + dir);
+            return;
+        }
+
+        TreeMap<Integer, File> found = new TreeMap<>();
+        File[] fileList = dir.listFiles();
+        if (fileList != null) {
+            for (File file : fileList) {
+                String name = file.getName();
+                if (name.matches("segment-\\d{8}\\.log")) {
+                    found.put(Integer.valueOf(name.substring(8, 16)), file);
+                }
+            }
+        }
+
+        List<FileChunk> chunks = new ArrayList<>();
+        synchronized (this) {
+            // latest version of every chunk, tombstones included
+            HashMap<String, Record> latest = new HashMap<>();
+            for (Map.Entry<Integer, File> pair : found.entrySet()) {
+                Segment segment = new Segment(pair.getKey(), pair.getValue());
+                segments.put(segment.id, segment);
+                nextSegmentID = segment.id + 1;
+
+                List<Record> records;
+                try {
+                    records = scan(segment, true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                for (Record record : records) {
+                    segment.minSeq = Math.min(segment.minSeq, record.seq);
+                    seq = Math.max(seq, record.seq);
+                    String key = key(record.fileName, record.chunkID);
+                    Record current = latest.get(key);
+                    // a copy made by compaction has the same number, the later segment keeps it
+                    if (current == null || record.seq >= current.seq) {
+                        latest.put(key, record);
+                    }
+                }
+            }
+
+            for (Record record : latest.values()) {
+                if (record.length != DELETED) {
+                    index(record);
+                    FileChunk chunk = new FileChunk(record.fileName, record.chunkID, record.length);
+                    chunk.checksums = record.checksums;
+                    chunks.add(chunk);
+                }
+            }
+        }
+
+        fileInfo.addRecovered(chunks);
+        System.out.println("Recovered " + chunks.size() + " chunks from " + found.size() + " segments");
+        startCompaction();
+    }
+
+    @Override
+    public byte[] read(FileChunk chunk, int offset, int length) {
+        // a record moved by compaction meanwhile is looked up again
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Record record = lookup(chunk);
+            if (record == null) {
+                return null;
+            }
+            if (length > 0 && offset + length > record.length) {
+                System.out.println("Chunk " + chunk + " shorter than " + (offset + length));
+                return null;
+            }
+
+            try {
+                return readData(record, offset, length);
+            } catch (ClosedChannelException e) {
+                continue;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public FileRegion openRegion(FileChunk chunk, int offset, int length) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Record record = lookup(chunk);
+            if (record == null || (length > 0 && offset + length > record.length)) {
+                return null;
+            }
+
+            try {
+                // own channel, records never change once written, even if segment is deleted later
+                FileChannel channel = new FileInputStream(record.segment.file).getChannel();
+                return new FileRegion(channel, record.dataOffset() + offset, length);
+            } catch (FileNotFoundException e) {
+                // compacted meanwhile
+                continue;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized int write(FileChunk chunk, byte[] data, ChunkChecksums checksums) {
+        byte[] content = data == null ? new byte[0] : data;
+        try {
+            index(appendRecord(chunk.realFileName, chunk.chunkID, ++seq, content, checksums));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return content.length;
+    }
+
+    @Override
+    public synchronized int append(FileChunk chunk, byte[] data, ChunkChecksums checksums) {
+        Record current = index.get(key(chunk.realFileName, chunk.chunkID));
+        if (current == null || current.length < chunk.actualLength) {
+            System.out.println("Append must occur when the specified chunk already in store");
+            return -1;
+        }
+
+        // chunks are small, the new version carries the whole chunk
+        byte[] content = new byte[chunk.actualLength + data.length];
+        try {
+            byte[] old = readData(current, 0, chunk.actualLength);
+            System.arraycopy(old, 0, content, 0, old.length);
+            System.arraycopy(data, 0, content, old.length, data.length);
+            index(appendRecord(chunk.realFileName, chunk.chunkID, ++seq, content, checksums));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return data.length;
+    }
+
+    @Override
+    public boolean sync(Collection<FileChunk> chunks) {
+        // every record goes to a segment, syncing segments written covers all chunks
+        return syncWritten();
+    }
+
+    /**
+     * Force segments written since last sync to disk
+     *
+     * @return false if one of them may not be on disk
+     */
+    private boolean syncWritten() {
+        synchronized (syncLock) {
+            List<Segment> written;
+            boolean created;
+            synchronized (this) {
+                written = new ArrayList<>(unsynced);
+                unsynced.clear();
+                created = segmentCreated;
+                segmentCreated = false;
+            }
+
+            boolean durable = true;
+            for (Segment segment : written) {
+                try {
+                    force(segment);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    durable = false;
+                    synchronized (this) {
+                        unsynced.add(segment);
+                    }
+                }
+            }
+            if (created) {
+                FileChunkStore.syncDirectory(dir);
+            }
+            return durable;
+        }
+    }
+
+    /**
+     * Sync data of one segment, its size is set when created
+     *
+     * @param segment segment written
+     * @throws IOException if sync fails
+     */
+    private static void force(Segment segment) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                segment.channel().force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                if (segment.isDropped()) {
+                    // compacted, its live records were synced elsewhere before it was deleted
+                    return;
+                }
+                // closed by an interrupted reader, opened again
+                if (attempt >= 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(FileChunk chunk) {
+        Record old = index.remove(key(chunk.realFileName, chunk.chunkID));
+        if (old == null) {
+            return false;
+        }
+        old.segment.liveBytes -= old.size;
+
+        try {
+            appendRecord(chunk.realFileName, chunk.chunkID, ++seq, null, null);
+        } catch (IOException e) {
+            // chunk comes back on restart, meta server drops it with the next block report
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * @return sizes and compaction counters in one line
+     */
+    public synchronized String report() {
+        long written = 0;
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            written += segment.writePosition;
+            live += segment.liveBytes;
+        }
+        return String.format("chunk store: segments=%d chunks=%d liveKB=%d writtenKB=%d compactions=%d reclaimedKB=%d",
+                segments.size(), index.size(), live / 1024, written / 1024, compactions, reclaimedBytes / 1024);
+    }
+
+    private synchronized Record lookup(FileChunk chunk) {
+        return index.get(key(chunk.realFileName, chunk.chunkID));
+    }
+
+    /**
+     * Point index at a record, caller holds the lock
+     */
+    private void index(Record record) {
+        Record old = index.put(key(record.fileName, record.chunkID), record);
+        if (old != null) {
+            old.segment.liveBytes -= old.size;
+        }
+        record.segment.liveBytes += record.size;
+    }
+
+    /**
+     * Write a record at the end of active segment, starting a new segment if it does not fit.
+     * Caller holds the lock
+     *
+     * @param data      chunk content, null for a tombstone
+     * @param checksums of data, null for a tombstone
+     * @return the record written, not indexed yet
+     * @throws IOException if write fails, the space is reused by the next record
+     */
+    private Record appendRecord(String fileName, int chunkID, long recordSeq, byte[] data,
+                                ChunkChecksums checksums) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IOException("File name too long: " + fileName);
+        }
+
+        int length = data == null ? DELETED : data.length;
+        int[] sums = data == null ? new int[0] : checksums.sums;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + name.length + 4 * sums.length + CRC_SIZE
+                + Math.max(length, 0));
+        record.putInt(MAGIC_CHECKSUMS).putLong(recordSeq).putInt(chunkID).putInt(length)
+                .putShort((short) name.length).put(name);
+        for (int sum : sums) {
+            record.putInt(sum);
+        }
+        record.putInt(Crc32c.of(record.array(), 4, record.position() - 4));
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+
+        if (active == null || active.writePosition + record.limit() > segmentSize()) {
+            roll();
+        }
+        FileChannel channel = active.channel();
+        while (record.hasRemaining()) {
+            channel.write(record, active.writePosition + record.position());
+        }
+
+        Record written = new Record(fileName, chunkID, recordSeq, length, active, active.writePosition, record.limit(),
+                checksums);
+        active.writePosition += record.limit();
+        active.minSeq = Math.min(active.minSeq, recordSeq);
+        unsynced.add(active);
+        return written;
+    }
+
+    private long segmentSize() {
+        return Math.max(segmentSizeMB, 1) * 1024L * 1024L;
+    }
+
+    /**
+     * Seal active segment and start a new one. Caller holds the lock
+     */
+    private void roll() throws IOException {
+        int id = nextSegmentID++;
+        Segment segment = new Segment(id, new File(dir, String.format("segment-%08d.log", id)));
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        // reserved up front, the file does not grow record by record
+        file.setLength(segmentSize());
+        segment.channel = file.getChannel();
+
+        segments.put(id, segment);
+        active = segment;
+        segmentCreated = true;
+    }
+
+    private static byte[] readData(Record record, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(record.segment.channel(), buffer, record.dataOffset() + offset);
+        return buffer.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Segment ends at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    /**
+     * Read records of a segment up to the first one not completely written, which sets its
+     * write position. A record whose data does not match its checksums is kept for the
+     * scrubber to report, unless it is the last one, which a crash tore while writing
+     *
+     * @param segment       segment not being appended to
+     * @param dropTornTail  whether a last record with bad data is dropped, only on recovery
+     * @return records in order
+     * @throws IOException if segment can not be read
+     */
+    private List<Record> scan(Segment segment, boolean dropTornTail) throws IOException {
+        List<Record> records = new ArrayList<>();
+        FileChannel channel = segment.channel();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        boolean lastDataBad = false;
+
+        while (position + HEADER_SIZE + CRC_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            if (magic != MAGIC && magic != MAGIC_CHECKSUMS) {
+                // preallocated space after last record
+                break;
+            }
+            long recordSeq = header.getLong();
+            int chunkID = header.getInt();
+            int length = header.getInt();
+            int nameLength = header.getShort() & 0xffff;
+            if (length < DELETED || length > FileChunk.FIXED_SIZE || nameLength > MAX_NAME_BYTES) {
+                System.out.println("Bad record in " + segment.file + " at " + position);
+                break;
+            }
+            int dataLength = Math.max(length, 0);
+            int sumBytes = magic == MAGIC_CHECKSUMS ? 4 * ChunkChecksums.blockCount(dataLength) : 0;
+            int recordSize = HEADER_SIZE + nameLength + sumBytes + CRC_SIZE + dataLength;
+            if (position + recordSize > size) {
+                break;
+            }
+
+            ByteBuffer rest = ByteBuffer.allocate(recordSize - HEADER_SIZE);
+            readFully(channel, rest, position + HEADER_SIZE);
+            byte[] bytes = rest.array();
+            int crcAt = nameLength + sumBytes;
+            byte[] data = Arrays.copyOfRange(bytes, crcAt + CRC_SIZE, bytes.length);
+            int storedCrc = ByteBuffer.wrap(bytes, crcAt, CRC_SIZE).getInt();
+
+            ChunkChecksums checksums = null;
+            boolean dataBad = false;
+            if (magic == MAGIC_CHECKSUMS) {
+                Crc32c crc = new Crc32c();
+                crc.update(header.array(), 4, HEADER_SIZE - 4);
+                crc.update(bytes, 0, crcAt);
+                if (storedCrc != (int) crc.getValue()) {
+                    System.out.println("Torn record in " + segment.file + " at " + position);
+                    break;
+                }
+                if (length != DELETED) {
+                    int[] sums = new int[sumBytes / 4];
+                    ByteBuffer.wrap(bytes, nameLength, sumBytes).asIntBuffer().get(sums);
+                    checksums = new ChunkChecksums(length, sums);
+                    dataBad = checksums.verify(data, 0) >= 0;
+                }
+            } else {
+                CRC32 crc = new CRC32();
+                crc.update(header.array(), 4, HEADER_SIZE - 4);
+                crc.update(bytes, 0, nameLength);
+                crc.update(data, 0, data.length);
+                if (storedCrc != (int) crc.getValue()) {
+                    System.out.println("Torn record in " + segment.file + " at " + position);
+                    break;
+                }
+                if (length != DELETED) {
+                    checksums = ChunkChecksums.of(data);
+                }
+            }
+            if (dataBad) {
+                System.out.println("Corrupt data of record in " + segment.file + " at " + position);
+            }
+
+            String fileName = new String(bytes, 0, nameLength, StandardCharsets.UTF_8);
+            records.add(new Record(fileName, chunkID, recordSeq, length, segment, position, recordSize, checksums));
+            lastDataBad = dataBad;
+            position += recordSize;
+        }
+
+        if (dropTornTail && lastDataBad) {
+            Record torn = records.remove(records.size() - 1);
+            position = torn.offset;
+        }
+        segment.writePosition = position;
+        return records;
+    }
+
+    /**
+     * Create a new thread to compact segments in background
+     */
+    private void startCompaction() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(compactIntervalMillis);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+                    compact();
+                }
+            }
+        });
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Compact every sealed segment whose live records fill less than compactLivePercent of it
+     */
+    void compact() {
+        List<Segment> victims = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes * 100 < segment.writePosition * compactLivePercent) {
+                    victims.add(segment);
+                }
+            }
+        }
+        if (victims.isEmpty()) {
+            return;
+        }
+
+        for (Segment segment : victims) {
+            try {
+                compactSegment(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println(report());
+    }
+
+    /**
+     * Copy live records and needed tombstones of a sealed segment to active segment, with their
+     * sequence numbers, then delete it. A copy left by a crash before the delete has the same
+     * number as the original, recovery keeps either
+     */
+    private void compactSegment(Segment segment) throws IOException {
+        long copied = 0;
+        for (Record record : scan(segment, false)) {
+            synchronized (this) {
+                Record current = index.get(key(record.fileName, record.chunkID));
+                if (record.length == DELETED) {
+                    if (current == null && olderVersionsMayExist(record.seq, segment)) {
+                        copied += appendRecord(record.fileName, record.chunkID, record.seq, null, null).size;
+                    }
+                } else if (current != null && current.segment == segment && current.offset == record.offset) {
+                    byte[] data = readData(record, 0, record.length);
+                    // moved as is, a block gone bad still fails its checksum
+                    Record moved = appendRecord(record.fileName, record.chunkID, record.seq, data, record.checksums);
+                    index(moved);
+                    copied += moved.size;
+                }
+            }
+        }
+
+        // copies are on disk before the only other copy is deleted
+        if (!syncWritten()) {
+            throw new IOException("Copies of " + segment.file + " not synced, kept");
+        }
+
+        synchronized (this) {
+            segments.remove(segment.id);
+            compactions++;
+            reclaimedBytes += segment.writePosition - copied;
+        }
+        segment.drop();
+    }
+
+    /**
+     * A tombstone is needed as long as another segment may hold an older version of its chunk.
+     * Caller holds the lock
+     *
+     * @param tombstoneSeq sequence number of tombstone
+     * @param holder       segment holding the tombstone
+     * @return true if a segment other than holder has records older than the tombstone
+     */
+    private boolean olderVersionsMayExist(long tombstoneSeq, Segment holder) {
+        for (Segment segment : segments.values()) {
+            if (segment != holder && segment.minSeq < tombstoneSeq) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
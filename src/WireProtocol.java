@@ -0,0 +1,623 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Length-prefixed binary framing shared by meta server, file servers and clients.
+ * <p>
+ * Every message on the wire is one frame:
+ * <pre>
+ *   version (1 byte) | kind (1 byte) | flags (1 byte) | stream ID (4 bytes) | body length (4 bytes) | body
+ * </pre>
+ * Bodies are written with typed fields (opcode, file name, chunk ID, integer params,
+ * chunk lists) and the payload, if any, is always the last field of a body.
+ * <p>
+ * A response or ACK carries the stream ID of the frame it answers, so many requests can be
+ * in flight on one connection and their responses may come back in any order.
+ * Heartbeats have a connection of their own and use stream ID 0: each block report is
+ * answered by a REPORT_ACK before the next one is sent.
+ * <p>
+ * A connection may start with a HELLO exchange in which both sides agree on optional
+ * features. When DEFLATE is agreed, a frame with FLAG_DEFLATE set carries the raw body length
+ * followed by the deflated body.
+ */
+public class WireProtocol {
+    public static final byte VERSION = 7;
+
+    // frame kinds
+    public static final byte KIND_REQUEST = 1;
+    public static final byte KIND_RESPONSE = 2;
+    public static final byte KIND_ACK = 3;
+    public static final byte KIND_BLOCK_REPORT = 4;
+    public static final byte KIND_HELLO = 5;
+    public static final byte KIND_REPORT_ACK = 6;
+    // liveness ping, a datagram of its own and never a stream frame
+    public static final byte KIND_PING = 7;
+
+    // frame flags
+    public static final byte FLAG_DEFLATE = 1;
+
+    // REPORT_ACK asking for a full block report instead of an applied seq
+    public static final long FULL_REPORT_WANTED = -1;
+
+    // features negotiated by HELLO
+    public static final int FEATURE_DEFLATE = 1;
+
+    // request opcodes, OP_CUSTOM is followed by the command string itself
+    public static final byte OP_CUSTOM = 0;
+    public static final byte OP_READ = 1;
+    public static final byte OP_WRITE = 2;
+    public static final byte OP_APPEND = 3;
+    public static final byte OP_DELETE = 4;
+    public static final byte OP_REPLICA = 5;
+    public static final byte OP_MIGRATE_REPLICA = 6;
+    public static final byte OP_FETCH_REPLICAS = 7;
+    public static final byte OP_LOCATE = 8;
+    public static final byte OP_ALLOCATE = 9;
+    public static final byte OP_REPORT_CORRUPT = 10;
+
+    public static final int HEADER_SIZE = 11;
+    // version, kind, file server ID, ping seq
+    public static final int PING_SIZE = 14;
+    public static final int MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+    private static final String[] OPCODE_COMMANDS = {
+            null, "r", "w", "a", "d", "replica", "migrateReplica", "fetchReplicas", "l", "n",
+            "reportCorrupt"
+    };
+
+    /**
+     * One frame read from the wire, body is decoded by the caller according to kind
+     */
+    public static class Frame {
+        final byte kind;
+        final byte flags;
+        final int streamID;
+        final int bodyLength;
+        byte[] body;
+
+        Frame(byte kind, byte flags, int streamID, int bodyLength) {
+            this.kind = kind;
+            this.flags = flags;
+            this.streamID = streamID;
+            this.bodyLength = bodyLength;
+        }
+
+        public RequestEnvelop request() throws IOException {
+            return decodeRequest(bodyOf(KIND_REQUEST), true);
+        }
+
+        public ResponseEnvelop response() throws IOException {
+            return decodeResponse(bodyOf(KIND_RESPONSE));
+        }
+
+        public ACKEnvelop ack() throws IOException {
+            return decodeAck(bodyOf(KIND_ACK));
+        }
+
+        public BlockReport blockReport() throws IOException {
+            return decodeBlockReport(bodyOf(KIND_BLOCK_REPORT));
+        }
+
+        /**
+         * @return seq of the report applied by meta server, or FULL_REPORT_WANTED
+         */
+        public long reportAck() throws IOException {
+            return bodyOf(KIND_REPORT_ACK).readLong();
+        }
+
+        /**
+         * @return features offered or agreed by peer
+         */
+        public int hello() throws IOException {
+            return bodyOf(KIND_HELLO).readInt();
+        }
+
+        public boolean isHello() {
+            return kind == KIND_HELLO;
+        }
+
+        private DataInputStream bodyOf(byte expectedKind) throws IOException {
+            if (kind != expectedKind) {
+                throw new ProtocolException("Unexpected frame kind: " + kind + ", expect " + expectedKind);
+            }
+            if ((flags & FLAG_DEFLATE) != 0) {
+                return new DataInputStream(new ByteArrayInputStream(inflate(body)));
+            }
+            return new DataInputStream(new ByteArrayInputStream(body));
+        }
+    }
+
+    public static byte[] requestFrame(RequestEnvelop request, int streamID) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        encodeRequest(new DataOutputStream(body), request, true);
+        return frame(KIND_REQUEST, streamID, body);
+    }
+
+    public static byte[] responseFrame(ResponseEnvelop response, int streamID) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+
+        encodeResponse(output, response);
+        writeBytes(output, response.data);
+
+        return frame(KIND_RESPONSE, streamID, body);
+    }
+
+    /**
+     * Encode response whose payload is not in memory. The returned bytes end with the payload
+     * length, exactly payloadLength bytes of payload must be written right after them
+     *
+     * @param response      to encode, data is ignored
+     * @param streamID      stream of the request
+     * @param payloadLength bytes of payload following
+     * @return frame bytes up to the payload
+     * @throws IOException if encoding fails
+     */
+    public static byte[] responseFrameHead(ResponseEnvelop response, int streamID, int payloadLength) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+
+        encodeResponse(output, response);
+        output.writeInt(payloadLength);
+
+        return frame(KIND_RESPONSE, streamID, body, payloadLength);
+    }
+
+    private static void encodeResponse(DataOutputStream output, ResponseEnvelop response) throws IOException {
+        // request copy never carries payload
+        encodeRequest(output, response.requestCopy, false);
+        output.writeInt(response.error);
+        writeIntList(output, response.params);
+        writeIntList(output, response.chunksToScan);
+        writeIntList(output, response.chunksLocation);
+        writeIntList(output, response.chunksReplicas);
+        output.writeLong(response.version);
+    }
+
+    private static ResponseEnvelop decodeResponse(DataInputStream input) throws IOException {
+        ResponseEnvelop response = new ResponseEnvelop(decodeRequest(input, false));
+        response.error = input.readInt();
+
+        List<Integer> params = readIntList(input);
+        response.params = params == null ? null : new ArrayList<>(params);
+        List<Integer> chunksToScan = readIntList(input);
+        response.chunksToScan = chunksToScan == null ? null : new LinkedList<>(chunksToScan);
+        List<Integer> chunksLocation = readIntList(input);
+        response.chunksLocation = chunksLocation == null ? null : new LinkedList<>(chunksLocation);
+        List<Integer> chunksReplicas = readIntList(input);
+        response.chunksReplicas = chunksReplicas == null ? null : new LinkedList<>(chunksReplicas);
+        response.version = input.readLong();
+        response.data = readBytes(input);
+
+        return response;
+    }
+
+    public static byte[] ackFrame(ACKEnvelop ack, int streamID) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+
+        output.writeByte(ack.type);
+        output.writeInt(ack.id);
+        output.writeLong(ack.ackNo);
+        output.writeBoolean(ack.success);
+
+        output.writeInt(ack.chunkMap.size());
+        for (Map.Entry<String, ArrayList<Integer>> pair : ack.chunkMap.entrySet()) {
+            writeString(output, pair.getKey());
+            writeIntList(output, pair.getValue());
+        }
+
+        output.writeBoolean(ack.fileInfo != null);
+        if (ack.fileInfo != null) {
+            encodeFileInfo(output, ack.fileInfo);
+        }
+
+        return frame(KIND_ACK, streamID, body);
+    }
+
+    private static ACKEnvelop decodeAck(DataInputStream input) throws IOException {
+        int type = input.readByte();
+        int id = input.readInt();
+        long ackNo = input.readLong();
+        boolean success = input.readBoolean();
+
+        HashMap<String, ArrayList<Integer>> chunkMap = new HashMap<>();
+        int files = input.readInt();
+        for (int i = 0; i < files; i++) {
+            String fileName = readString(input);
+            List<Integer> list = readIntList(input);
+            chunkMap.put(fileName, list == null ? null : new ArrayList<>(list));
+        }
+
+        FileInfo fileInfo = null;
+        if (input.readBoolean()) {
+            fileInfo = decodeFileInfo(input);
+        }
+
+        return ACKEnvelop.decoded(type, id, ackNo, fileInfo, chunkMap, success);
+    }
+
+    public static byte[] helloFrame(int features, int streamID) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeInt(features);
+        return frame(KIND_HELLO, streamID, body);
+    }
+
+    public static void writeBlockReport(OutputStream out, BlockReport report) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+
+        output.writeBoolean(report.full);
+        output.writeLong(report.baseSeq);
+        output.writeLong(report.seq);
+        encodeFileInfo(output, report.fileInfo);
+
+        output.writeInt(report.removed.size());
+        for (Map.Entry<String, ArrayList<Integer>> pair : report.removed.entrySet()) {
+            writeString(output, pair.getKey());
+            writeIntList(output, pair.getValue());
+        }
+
+        writeFrame(out, frame(KIND_BLOCK_REPORT, 0, body));
+    }
+
+    public static BlockReport readBlockReport(InputStream in) throws IOException {
+        return readFrame(in).blockReport();
+    }
+
+    public static void writeReportAck(OutputStream out, long seq) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeLong(seq);
+        writeFrame(out, frame(KIND_REPORT_ACK, 0, body));
+    }
+
+    public static long readReportAck(InputStream in) throws IOException {
+        return readFrame(in).reportAck();
+    }
+
+    private static BlockReport decodeBlockReport(DataInputStream input) throws IOException {
+        boolean full = input.readBoolean();
+        long baseSeq = input.readLong();
+        long seq = input.readLong();
+
+        BlockReport report = new BlockReport(full, baseSeq, seq);
+        report.fileInfo = decodeFileInfo(input);
+
+        int files = input.readInt();
+        for (int i = 0; i < files; i++) {
+            String fileName = readString(input);
+            List<Integer> ids = readIntList(input);
+            if (ids != null) {
+                report.removed.put(fileName, new ArrayList<>(ids));
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Encode the fixed size liveness ping file servers send over UDP
+     *
+     * @param id  of file server
+     * @param seq of ping
+     * @return datagram payload
+     */
+    public static byte[] pingPacket(int id, long seq) {
+        return ByteBuffer.allocate(PING_SIZE).put(VERSION).put(KIND_PING).putInt(id).putLong(seq).array();
+    }
+
+    /**
+     * Decode a liveness ping
+     *
+     * @param data   datagram payload
+     * @param length bytes received
+     * @return ID of file server, -1 if not a valid ping
+     */
+    public static int pingSender(byte[] data, int length) {
+        if (length != PING_SIZE || data[0] != VERSION || data[1] != KIND_PING) {
+            return -1;
+        }
+        return ByteBuffer.wrap(data, 2, 4).getInt();
+    }
+
+    /**
+     * Write a whole frame at once, callers sharing the stream must hold its lock
+     *
+     * @param out   destination stream
+     * @param frame encoded frame
+     * @throws IOException if write fails
+     */
+    public static void writeFrame(OutputStream out, byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
+
+    private static byte[] frame(byte kind, int streamID, ByteArrayOutputStream body) throws IOException {
+        return frame(kind, streamID, body, 0);
+    }
+
+    /**
+     * Build header and body as a single buffer so one frame costs one write on the socket
+     *
+     * @param kind     frame kind
+     * @param streamID stream of the frame
+     * @param body     encoded body
+     * @param trailing bytes of body written separately after the returned buffer
+     * @return frame bytes
+     * @throws IOException if encoding fails
+     */
+    private static byte[] frame(byte kind, int streamID, ByteArrayOutputStream body, int trailing) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(HEADER_SIZE + body.size());
+        DataOutputStream output = new DataOutputStream(frame);
+        output.writeByte(VERSION);
+        output.writeByte(kind);
+        output.writeByte(0); // flags, reserved
+        output.writeInt(streamID);
+        output.writeInt(body.size() + trailing);
+        body.writeTo(output);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Read one whole frame of any kind
+     *
+     * @param in source stream
+     * @return frame with its body
+     * @throws IOException EOFException if the peer closed connection, ProtocolException if frame is malformed
+     */
+    public static Frame readFrame(InputStream in) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+
+        byte[] header = new byte[HEADER_SIZE];
+        input.readFully(header);
+        Frame frame = readHeader(ByteBuffer.wrap(header));
+
+        frame.body = new byte[frame.bodyLength];
+        input.readFully(frame.body);
+        return frame;
+    }
+
+    /**
+     * Check a complete frame header
+     *
+     * @param header buffer positioned at the first byte of header
+     * @return frame without body, body length tells how many bytes follow
+     * @throws ProtocolException if header is malformed
+     */
+    public static Frame readHeader(ByteBuffer header) throws ProtocolException {
+        byte version = header.get();
+        byte kind = header.get();
+        byte flags = header.get();
+        int streamID = header.getInt();
+        int length = header.getInt();
+
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+        if (kind < KIND_REQUEST || kind > KIND_REPORT_ACK) {
+            throw new ProtocolException("Unknown frame kind: " + kind);
+        }
+        if (length < 0 || length > MAX_BODY_SIZE) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        return new Frame(kind, flags, streamID, length);
+    }
+
+    /**
+     * Deflate the body of an encoded frame
+     *
+     * @param frame    whole frame
+     * @param deflater reset before use
+     * @return compressed frame, or null if compressed body is not smaller
+     * @throws IOException if encoding fails
+     */
+    public static byte[] deflateFrame(byte[] frame, Deflater deflater) throws IOException {
+        int rawLength = frame.length - HEADER_SIZE;
+
+        deflater.reset();
+        deflater.setInput(frame, HEADER_SIZE, rawLength);
+        deflater.finish();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(HEADER_SIZE + 4 + rawLength / 2);
+        DataOutputStream output = new DataOutputStream(compressed);
+        output.write(frame, 0, HEADER_SIZE);
+        output.writeInt(rawLength);
+
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            output.write(buffer, 0, n);
+            if (compressed.size() >= frame.length) {
+                return null;
+            }
+        }
+
+        byte[] result = compressed.toByteArray();
+        ByteBuffer header = ByteBuffer.wrap(result);
+        header.put(2, (byte) (frame[2] | FLAG_DEFLATE));
+        header.putInt(HEADER_SIZE - 4, result.length - HEADER_SIZE);
+        return result;
+    }
+
+    private static byte[] inflate(byte[] body) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        int rawLength = input.readInt();
+        if (rawLength < 0 || rawLength > MAX_BODY_SIZE) {
+            throw new ProtocolException("Invalid raw length: " + rawLength);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(body, 4, body.length - 4);
+            byte[] raw = new byte[rawLength];
+            int size = 0;
+            while (size < rawLength) {
+                int n = inflater.inflate(raw, size, rawLength - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != rawLength || !inflater.finished()) {
+                throw new ProtocolException("Corrupt compressed body");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed body: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void encodeRequest(DataOutputStream output, RequestEnvelop request, boolean withData) throws IOException {
+        byte opcode = opcodeOf(request.cmd);
+        output.writeByte(opcode);
+        if (opcode == OP_CUSTOM) {
+            writeString(output, request.cmd);
+        }
+        writeString(output, request.fileName);
+        output.writeInt(request.chunkID);
+        writeIntList(output, request.params);
+        writeBytes(output, withData ? request.data : null);
+    }
+
+    private static RequestEnvelop decodeRequest(DataInputStream input, boolean withData) throws IOException {
+        byte opcode = input.readByte();
+        String cmd;
+        if (opcode == OP_CUSTOM) {
+            cmd = readString(input);
+        } else if (opcode > 0 && opcode < OPCODE_COMMANDS.length) {
+            cmd = OPCODE_COMMANDS[opcode];
+        } else {
+            throw new ProtocolException("Unknown opcode: " + opcode);
+        }
+
+        String fileName = readString(input);
+        int chunkID = input.readInt();
+        List<Integer> params = readIntList(input);
+
+        RequestEnvelop request = new RequestEnvelop(cmd, fileName, chunkID,
+                params == null ? new ArrayList<Integer>() : new ArrayList<>(params));
+        byte[] data = readBytes(input);
+        if (withData) {
+            request.setData(data);
+        }
+        return request;
+    }
+
+    private static void encodeFileInfo(DataOutputStream output, FileInfo fileInfo) throws IOException {
+        writeString(output, fileInfo.fileDir);
+
+        // snapshot, file server keeps modifying chunk lists while heartbeat is sent
+        List<Map.Entry<String, List<FileChunk>>> files = new ArrayList<>(fileInfo.fileChunks.entrySet());
+        output.writeInt(files.size());
+        for (Map.Entry<String, List<FileChunk>> pair : files) {
+            List<FileChunk> chunks;
+            synchronized (pair.getValue()) {
+                chunks = new ArrayList<>(pair.getValue());
+            }
+
+            writeString(output, pair.getKey());
+            output.writeInt(chunks.size());
+            for (FileChunk chunk : chunks) {
+                output.writeInt(chunk.chunkID);
+                output.writeInt(chunk.actualLength);
+                output.writeInt(chunk.version);
+            }
+        }
+    }
+
+    private static FileInfo decodeFileInfo(DataInputStream input) throws IOException {
+        FileInfo fileInfo = new FileInfo(readString(input));
+
+        int files = input.readInt();
+        for (int i = 0; i < files; i++) {
+            String fileName = readString(input);
+            int size = input.readInt();
+
+            List<FileChunk> chunks = Collections.synchronizedList(new ArrayList<FileChunk>(size));
+            for (int j = 0; j < size; j++) {
+                FileChunk chunk = new FileChunk(fileName, input.readInt(), input.readInt());
+                chunk.version = input.readInt();
+                chunks.add(chunk);
+            }
+            fileInfo.fileChunks.put(fileName, chunks);
+        }
+
+        return fileInfo;
+    }
+
+    private static byte opcodeOf(String cmd) {
+        for (byte i = 1; i < OPCODE_COMMANDS.length; i++) {
+            if (OPCODE_COMMANDS[i].equals(cmd)) {
+                return i;
+            }
+        }
+        return OP_CUSTOM;
+    }
+
+    private static void writeString(DataOutputStream output, String str) throws IOException {
+        writeBytes(output, str == null ? null : str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = readBytes(input);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Length -1 stands for null, so receiver gets exactly what sender had
+     */
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_BODY_SIZE) {
+            throw new ProtocolException("Invalid field length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeIntList(DataOutputStream output, List<Integer> list) throws IOException {
+        if (list == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(list.size());
+        for (Integer value : list) {
+            output.writeInt(value);
+        }
+    }
+
+    private static List<Integer> readIntList(DataInputStream input) throws IOException {
+        int size = input.readInt();
+        if (size < 0) {
+            return null;
+        }
+        if (size > MAX_BODY_SIZE / 4) {
+            throw new ProtocolException("Invalid list size: " + size);
+        }
+        ArrayList<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(input.readInt());
+        }
+        return list;
+    }
+}